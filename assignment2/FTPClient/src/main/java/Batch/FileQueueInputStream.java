@@ -0,0 +1,98 @@
+package Batch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Frames a queue of files into one stream, so a single SR transfer carries a whole tree and
+// its window spans file boundaries. Files are opened one at a time as the stream reaches them.
+public class FileQueueInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Iterator<Manifest.Entry> queue;
+
+    private byte[] header = new byte[0];
+    private int headerPos = 0;
+
+    private InputStream file = null;
+    private long fileRemaining = 0;
+
+    public FileQueueInputStream(Manifest manifest) {
+        queue = manifest.getEntries().iterator();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+
+        return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        while (headerPos == header.length && fileRemaining == 0) {
+            if (!next()) {
+                return -1;
+            }
+        }
+
+        if (headerPos < header.length) {
+            final int n = Math.min(len, header.length - headerPos);
+
+            System.arraycopy(header, headerPos, buf, off, n);
+            headerPos += n;
+
+            return n;
+        }
+
+        int n = file.read(buf, off, (int)Math.min(len, fileRemaining));
+        if (n == -1) {
+            // the file shrank since the manifest was made; keep the framing the receiver expects.
+            n = (int)Math.min(len, fileRemaining);
+            Arrays.fill(buf, off, off + n, (byte)0);
+        }
+
+        fileRemaining -= n;
+        return n;
+    }
+
+    private boolean next() throws IOException {
+        closeFile();
+
+        if (!queue.hasNext()) {
+            return false;
+        }
+
+        Manifest.Entry entry = queue.next();
+        byte[] path = entry.getPathBytes();
+
+        header = ByteBuffer.allocate(Manifest.PATH_LEN_SIZE + path.length + Manifest.FILE_SIZE_SIZE)
+                .putShort((short)path.length)
+                .put(path)
+                .putLong(entry.size)
+                .array();
+        headerPos = 0;
+
+        file = new BufferedInputStream(new FileInputStream(entry.file), BUFFER_SIZE);
+        fileRemaining = entry.size;
+
+        return true;
+    }
+
+    private void closeFile() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeFile();
+    }
+}
@@ -0,0 +1,41 @@
+package Batch;
+
+import java.io.*;
+import java.nio.file.Path;
+
+// Unpacks the stream made by FileQueueInputStream under a root directory while it arrives.
+public class FileQueueOutputStream extends Unpacker {
+    private int fileCount = 0;
+
+    public FileQueueOutputStream(Path root) throws IOException {
+        super(root);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        while (len > 0) {
+            final int n = isFileOpen() ? writeFile(data, off, len) : readEntry(data, off, len);
+
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    protected void onEntry(String path, long size) throws IOException {
+        openFile(resolve(path), size);
+        ++fileCount;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isFileOpen()) {
+            abort();
+            throw new IOException("truncated batch");
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package Batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Regular files under a directory tree, in the order they are queued on the data channel.
+public class Manifest {
+    public static final int PATH_LEN_SIZE = 2;
+    public static final int FILE_SIZE_SIZE = 8;
+    public static final int FILE_COUNT_SIZE = 4;
+
+    public static class Entry {
+        public String path;
+        public File file;
+        public long size;
+
+        public Entry(String path, File file, long size) {
+            this.path = path;
+            this.file = file;
+            this.size = size;
+        }
+
+        public byte[] getPathBytes() {
+            return path.getBytes(StandardCharsets.UTF_8);
+        }
+
+        public long getRecordLength() {
+            return PATH_LEN_SIZE + getPathBytes().length + FILE_SIZE_SIZE + size;
+        }
+    }
+
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    public static Manifest of(File root) throws IOException {
+        return of(root, null);
+    }
+
+    // only files whose relative path matches the matcher are queued, if one is given.
+    public static Manifest of(File root, PathMatcher matcher) throws IOException {
+        Manifest manifest = new Manifest();
+        Path rootPath = root.toPath();
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(rootPath)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        for (Path file : files) {
+            // paths on the wire are always relative and '/'-separated.
+            Path relativePath = rootPath.relativize(file);
+            if (matcher != null && !matcher.matches(relativePath)) {
+                continue;
+            }
+
+            String relative = relativePath.toString().replace(File.separatorChar, '/');
+
+            manifest.entries.add(new Entry(relative, file.toFile(), Files.size(file)));
+        }
+
+        return manifest;
+    }
+
+    // length of the packed stream: an index of all paths and sizes, then the bare file contents.
+    public long getPackLength() {
+        long total = FILE_COUNT_SIZE;
+        for (Entry entry : entries) {
+            total += entry.getRecordLength();
+        }
+
+        return total;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+        }
+
+        return total;
+    }
+
+    // length of the framed stream: every file is preceded by its path and size.
+    public long getStreamLength() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.getRecordLength();
+        }
+
+        return total;
+    }
+}
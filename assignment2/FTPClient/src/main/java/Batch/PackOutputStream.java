@@ -0,0 +1,91 @@
+package Batch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Unpacks the stream made by PackInputStream on the fly: the index is read and checked first,
+// then the contents are split into files at the boundaries it gives.
+public class PackOutputStream extends Unpacker {
+    private ByteBuffer count = ByteBuffer.allocate(Manifest.FILE_COUNT_SIZE);
+    private int indexRemaining = -1;
+
+    private List<Path> paths = new ArrayList<Path>();
+    private List<Long> sizes = new ArrayList<Long>();
+    private int fileIndex = 0;
+
+    public PackOutputStream(Path root) throws IOException {
+        super(root);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        while (len > 0) {
+            int n;
+
+            if (indexRemaining == -1) {
+                n = Math.min(len, count.remaining());
+                count.put(data, off, n);
+
+                if (!count.hasRemaining()) {
+                    count.flip();
+                    indexRemaining = count.getInt();
+                    createEmptyFiles();
+                }
+            } else if (indexRemaining != 0) {
+                n = readEntry(data, off, len);
+            } else if (!isFileOpen()) {
+                openNext();
+                continue;
+            } else {
+                n = writeFile(data, off, len);
+
+                if (!isFileOpen()) {
+                    createEmptyFiles();
+                }
+            }
+
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    protected void onEntry(String path, long size) throws IOException {
+        paths.add(resolve(path));
+        sizes.add(size);
+
+        --indexRemaining;
+        createEmptyFiles();
+    }
+
+    private void openNext() throws IOException {
+        if (fileIndex >= paths.size()) {
+            throw new IOException("pack is longer than its index");
+        }
+
+        openFile(paths.get(fileIndex), sizes.get(fileIndex));
+        ++fileIndex;
+    }
+
+    // empty files never see a data byte, so they are created as soon as the stream reaches them.
+    private void createEmptyFiles() throws IOException {
+        while (indexRemaining == 0 && fileIndex < paths.size() && sizes.get(fileIndex) == 0) {
+            openNext();
+        }
+    }
+
+    public int getFileCount() {
+        return paths.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isFileOpen() || fileIndex < paths.size() || indexRemaining != 0) {
+            abort();
+            throw new IOException("truncated pack");
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package Client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Non-blocking access to a server for code that embeds the client. Every operation returns at once with
+// a CompletableFuture and runs on a pooled Session: up to maxSessions operations run at the same time and
+// the rest wait for a free session. Sessions are opened on demand and kept for later operations; one whose
+// transfer failed is closed instead. Paths are relative to the directory a new session starts in.
+//
+//   try (AsyncClient client = new AsyncClient("127.0.0.1", 2020, 2121, 8)) {
+//       client.get("log.csv").thenApply(ByteBuffer::remaining).thenAccept(System.out::println);
+//   }
+//
+// stream and the Flow.Publisher put connect a download or an upload to an in-process pipeline, chunk by
+// chunk and with the pipeline's demand holding the transfer back, without a file or a whole-file buffer.
+public class AsyncClient implements AutoCloseable {
+    // a download into a ByteBuffer cannot be larger than an array
+    private static final long MAX_BUFFER = Integer.MAX_VALUE - 8;
+
+    private interface Operation<T> {
+        T run(Session session) throws IOException;
+    }
+
+    private String host;
+    private int ctlPort;
+    private int dataPort;
+    private boolean secure;
+
+    private Semaphore sessions;
+    private ConcurrentLinkedQueue<Session> idle = new ConcurrentLinkedQueue<Session>();
+    private ExecutorService executor;
+
+    public AsyncClient(String host, int ctlPort, int dataPort, int maxSessions) {
+        this(host, ctlPort, dataPort, maxSessions, false);
+    }
+
+    // secure: every session's data channel runs TLS, which needs the javax.net.ssl trust store.
+    public AsyncClient(String host, int ctlPort, int dataPort, int maxSessions, boolean secure) {
+        this.host = host;
+        this.ctlPort = ctlPort;
+        this.dataPort = dataPort;
+        this.secure = secure;
+
+        this.sessions = new Semaphore(maxSessions);
+        this.executor = SR.Threads.newExecutor("ftp-client", maxSessions);
+    }
+
+    // the file's content is written to out, which is left open; completes with its length.
+    public CompletableFuture<Long> get(String path, OutputStream out) {
+        return submit(session -> session.get(path, out));
+    }
+
+    // the file's content, from position 0 up to its limit.
+    public CompletableFuture<ByteBuffer> get(String path) {
+        return submit(session -> {
+            ByteBufferOutputStream[] sink = new ByteBufferOutputStream[1];
+
+            session.get(path, length -> {
+                if (length > MAX_BUFFER) {
+                    throw new IOException(path + " is too large for a ByteBuffer: " + length + " bytes");
+                }
+
+                sink[0] = new ByteBufferOutputStream((int) length);
+                return sink[0];
+            });
+
+            return sink[0].buffer.flip();
+        });
+    }
+
+    // The file as a cold publisher: every subscriber gets a download of its own on a pooled session and
+    // its chunks as they arrive, each in a ByteBuffer of its own and only as many as it requested. The
+    // subscriber hears of every failure, including one to get a session at all.
+    public Flow.Publisher<ByteBuffer> stream(String path) {
+        return subscriber -> {
+            Objects.requireNonNull(subscriber);
+            AtomicBoolean started = new AtomicBoolean();
+
+            submit(session -> {
+                started.set(true);
+                return session.get(path, subscriber);
+            }).whenComplete((length, e) -> {
+                // from then on the session signals the subscriber itself
+                if (e != null && !started.get()) {
+                    Session.refuse(subscriber, e);
+                }
+            });
+        };
+    }
+
+    // exactly length bytes are read from in, which is left open.
+    public CompletableFuture<Void> put(String name, InputStream in, long length) {
+        return submit(session -> {
+            session.put(name, in, length);
+            return null;
+        });
+    }
+
+    // the remaining bytes of data; its position is left as it was.
+    public CompletableFuture<Void> put(String name, ByteBuffer data) {
+        final ByteBuffer content = data.duplicate();
+
+        return submit(session -> {
+            session.put(name, new ByteBufferInputStream(content), content.remaining());
+            return null;
+        });
+    }
+
+    // exactly length bytes, taken from publisher as the transfer has room for them; its subscription is
+    // cancelled once they are sent.
+    public CompletableFuture<Void> put(String name, Flow.Publisher<? extends ByteBuffer> publisher, long length) {
+        return submit(session -> {
+            session.put(name, publisher, length);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<String>> list(String path) {
+        return submit(session -> session.list(path));
+    }
+
+    // waits for the operations already submitted, then closes every session.
+    @Override
+    public void close() {
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // transfers may take long; keep waiting
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Session session;
+        while ((session = idle.poll()) != null) {
+            session.close();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+
+        try {
+            executor.execute(() -> run(operation, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new IOException("client is closed"));
+        }
+
+        return future;
+    }
+
+    private <T> void run(Operation<T> operation, CompletableFuture<T> future) {
+        try {
+            sessions.acquire();
+        } catch (InterruptedException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+
+        Session session = null;
+        T result;
+
+        try {
+            session = idle.poll();
+            if (session == null) {
+                session = new Session(host, ctlPort, dataPort, secure);
+            }
+
+            result = operation.run(session);
+        } catch (IOException | RuntimeException e) {
+            release(session);
+            future.completeExceptionally(e);
+            return;
+        }
+
+        // back in the pool before the future completes, so whatever depends on it can have the session
+        release(session);
+        future.complete(result);
+    }
+
+    private void release(Session session) {
+        if (session != null && session.isBroken()) {
+            session.close();
+        } else if (session != null) {
+            idle.offer(session);
+        }
+
+        sessions.release();
+    }
+
+    private static class ByteBufferOutputStream extends OutputStream {
+        private ByteBuffer buffer;
+
+        public ByteBufferOutputStream(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer.remaining()) {
+                throw new IOException("more data than announced");
+            }
+
+            buffer.put(b, off, len);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
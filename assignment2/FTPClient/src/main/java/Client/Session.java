@@ -0,0 +1,283 @@
+package Client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+import Control.Message;
+import Control.Opcode;
+
+// One session with the server for code that embeds the client: a control connection in binary framing
+// and its data channel. Operations block, print nothing and throw IOException on failure, the server's
+// reply in the message. One operation at a time; a session whose transfer failed may be out of step
+// with the server and is best closed (see isBroken).
+public class Session implements AutoCloseable {
+    // where a download goes, picked once the server announced its length.
+    public interface Sink {
+        OutputStream open(long length) throws IOException;
+    }
+
+    private Socket ctlSocket;
+    private DataInputStream ctlIn;
+    private DataOutputStream ctlOut;
+
+    private SR.DataChannel dataChannel;
+    private SR.ChunkSizer chunks = new SR.ChunkSizer();
+    private boolean broken = false;
+
+    public Session(String host, int ctlPort, int dataPort) throws IOException {
+        this(host, ctlPort, dataPort, false);
+    }
+
+    public Session(String host, int ctlPort, int dataPort, boolean secure) throws IOException {
+        ctlSocket = new Socket(host, ctlPort);
+
+        try {
+            negotiateBinary();
+            openDataChannel(host, dataPort, secure);
+        } catch (IOException e) {
+            ctlSocket.close();
+            throw e;
+        }
+    }
+
+    // the reply to BINARY is the last text line; it is read byte by byte so nothing after it is consumed.
+    private void negotiateBinary() throws IOException {
+        OutputStream out = ctlSocket.getOutputStream();
+        out.write("BINARY\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+
+        InputStream in = ctlSocket.getInputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("control channel closed");
+            }
+
+            line.write(c);
+        }
+
+        String reply = line.toString(StandardCharsets.UTF_8).strip();
+        if (!reply.startsWith("2")) {
+            throw new IOException(reply);
+        }
+
+        ctlIn = new DataInputStream(new BufferedInputStream(in));
+        ctlOut = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    private void openDataChannel(String host, int dataPort, boolean secure) throws IOException {
+        Message reply = secure ? request("DATA", "TLS") : request("DATA");
+        final long token = reply.getLong(0);
+
+        Socket dataSocket = new Socket(host, dataPort);
+        try {
+            dataSocket.setTcpNoDelay(true);
+
+            DataOutputStream out = new DataOutputStream(dataSocket.getOutputStream());
+            out.writeLong(token);
+            out.flush();
+
+            dataChannel = secure ? SR.DataChannel.connect(dataSocket, host, dataPort) : new SR.DataChannel(dataSocket);
+        } catch (IOException e) {
+            dataSocket.close();
+            throw e;
+        }
+    }
+
+    public boolean isBroken() {
+        return broken;
+    }
+
+    public boolean isSecure() {
+        return dataChannel.isSecure();
+    }
+
+    // the session's working directory on the server, after changing into dir if it is not null.
+    public String cd(String dir) throws IOException {
+        Message reply = (dir == null) ? request("CD") : request("CD", dir);
+
+        return reply.getString(0);
+    }
+
+    public List<String> list(String path) throws IOException {
+        Message reply = request("LIST", path);
+
+        final long count = reply.getLong(0);
+        List<String> entries = new ArrayList<String>();
+
+        for (long i = 0; i < count; ++i) {
+            entries.add(read().toString());
+        }
+
+        return entries;
+    }
+
+    // the length of the file, which the server announces before sending it.
+    public long get(String path, OutputStream out) throws IOException {
+        return get(path, length -> out);
+    }
+
+    public long get(String path, Sink sink) throws IOException {
+        Message reply = request("GET", path);
+
+        final long length = reply.getLong(0);
+        final int transferId = (int) reply.getLong(1);
+
+        return transfer(() -> {
+            new SR.Receiver(dataChannel, transferId, null).recv(sink.open(length), length);
+            return length;
+        });
+    }
+
+    // Hands the file to subscriber chunk by chunk as they arrive, only as many as it requested, and
+    // returns its length once onComplete was signalled (see SR.Receiver). The subscriber hears of every
+    // failure, a GET the server refuses included, which is thrown as well.
+    public long get(String path, Flow.Subscriber<? super ByteBuffer> subscriber) throws IOException {
+        final Message reply;
+        try {
+            reply = request("GET", path);
+        } catch (IOException e) {
+            refuse(subscriber, e);
+            throw e;
+        }
+
+        final long length = reply.getLong(0);
+        final int transferId = (int) reply.getLong(1);
+
+        return transfer(() -> {
+            new SR.Receiver(dataChannel, transferId, null).recv(subscriber, length);
+            return length;
+        });
+    }
+
+    // the file is stored under the last element of name in the session's working directory.
+    public void put(String name, InputStream in, long length) throws IOException {
+        put(name, length, sender -> sender.send(in, length));
+    }
+
+    // exactly length bytes, sent as publisher delivers them; it is subscribed once the server took the PUT.
+    public void put(String name, Flow.Publisher<? extends ByteBuffer> publisher, long length) throws IOException {
+        put(name, length, sender -> sender.send(publisher, length));
+    }
+
+    private interface Upload {
+        void run(SR.Sender sender) throws IOException, InterruptedException;
+    }
+
+    private void put(String name, long length, Upload upload) throws IOException {
+        send(new Message(Opcode.of("PUT"), name));
+        send(new Message(Opcode.VALUE, length));
+
+        final int transferId = (int) checked(read()).getLong(0);
+
+        transfer(() -> {
+            SR.Sender sender = new SR.Sender(dataChannel, transferId, new ArrayList<Long>(), new ArrayList<Long>(),
+                    new ArrayList<Long>(), null);
+            sender.setChunkSizer(chunks);
+
+            try {
+                upload.run(sender);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+
+            return length;
+        });
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (dataChannel != null) dataChannel.close();
+            ctlSocket.close();
+        } catch (IOException ignored) {
+            // nothing left to do with it either way
+        }
+    }
+
+    private interface Transfer {
+        long run() throws IOException;
+    }
+
+    // once a transfer has started, failing it leaves the data channel in an unknown state.
+    private long transfer(Transfer transfer) throws IOException {
+        try {
+            return transfer.run();
+        } catch (IOException | RuntimeException e) {
+            broken = true;
+            throw e;
+        }
+    }
+
+    private Message request(String verb, Object... fields) throws IOException {
+        send(new Message(Opcode.of(verb), fields));
+
+        return checked(read());
+    }
+
+    private void send(Message msg) throws IOException {
+        try {
+            msg.write(ctlOut);
+            ctlOut.flush();
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+    }
+
+    private Message read() throws IOException {
+        Message msg;
+        try {
+            msg = Message.read(ctlIn);
+        } catch (IOException e) {
+            broken = true;
+            throw e;
+        }
+
+        if (msg == null) {
+            broken = true;
+            throw new EOFException("control channel closed");
+        }
+
+        return msg;
+    }
+
+    // for a subscriber that gets no data: a subscription that does nothing, then the failure.
+    static void refuse(Flow.Subscriber<?> subscriber, Throwable e) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+
+        subscriber.onError(e);
+    }
+
+    private static Message checked(Message reply) throws IOException {
+        if (!reply.isSuccess()) {
+            throw new IOException(reply.getCode() + " " + reply);
+        }
+
+        return reply;
+    }
+}
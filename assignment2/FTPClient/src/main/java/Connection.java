@@ -0,0 +1,419 @@
+import SR.Sender;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class Connection {
+    private String host;
+    private int dataPort;
+
+    private Socket ctlSocket;
+    private PrintWriter ctlWriter;
+    private BufferedReader ctlReader;
+
+    // binary control framing, negotiated right after connecting
+    private boolean binary = false;
+    private DataInputStream ctlIn;
+    private DataOutputStream ctlOut;
+
+    private SR.DataChannel dataChannel;
+
+    private static final int SEQ_NO_SIZE = 1;
+    private static final int CHK_SUM_SIZE = 2;
+    private static final int SIZE_SIZE = 2;
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final int WINDOW_SIZE = 5;
+    private static final int SEQ_NO_INTERVAL = 15;
+
+    public List<Long> ReceiveDrop = new ArrayList<Long>();
+    public List<Long> ReceiveTimeout = new ArrayList<Long>();
+    public List<Long> ReceiveBitErr = new ArrayList<Long>();
+
+    private boolean compression = false;
+    private SR.Emulator.Profile profile;
+    private int fec = SR.Sender.FEC_OFF;
+    private SR.ChunkSizer chunks = new SR.ChunkSizer();
+
+    public Connection(String host, int ctlPort, int dataPort, boolean binary) throws IOException {
+        this.host = host;
+        this.dataPort = dataPort;
+
+        ctlSocket = new Socket(host, ctlPort);
+        ctlWriter = new PrintWriter(ctlSocket.getOutputStream(), true);
+        ctlReader = new BufferedReader(new InputStreamReader(ctlSocket.getInputStream()));
+
+        if (binary) {
+            negotiateBinary();
+        }
+
+        openDataChannel();
+    }
+
+    // the reply to BINARY is the last text line; everything after it is a Control.Message frame.
+    private void negotiateBinary() throws IOException {
+        sendControlMessage("BINARY");
+
+        String respMsg = recvControlMessage();
+        if (!Connection.isSuccess(respMsg)) {
+            throw new IOException(Connection.parsePhrase(respMsg));
+        }
+
+        ctlIn = new DataInputStream(new BufferedInputStream(ctlSocket.getInputStream()));
+        ctlOut = new DataOutputStream(new BufferedOutputStream(ctlSocket.getOutputStream()));
+        binary = true;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public void setProfile(SR.Emulator.Profile profile) {
+        this.profile = profile;
+    }
+
+    public void setFec(int fec) {
+        this.fec = fec;
+    }
+
+    private SR.Codec createCodec() {
+        return compression ? new SR.DeflateCodec() : null;
+    }
+
+    // in binary mode the verb becomes its opcode and each argument a field of its own.
+    public void sendControlMessage(String msg) {
+        if (!binary) {
+            ctlWriter.println(msg);
+            return;
+        }
+
+        String[] tokens = Control.Opcode.tokens(msg);
+
+        if (Control.Opcode.of(tokens[0]) == Control.Opcode.LINE) {
+            sendFrame(new Control.Message(Control.Opcode.LINE, msg.strip()));
+        } else {
+            sendCommand(tokens);
+        }
+    }
+
+    // a verb and its arguments; a frame keeps them apart, so an argument may hold spaces.
+    public void sendCommand(String verb, Object... args) {
+        int opcode = Control.Opcode.of(verb);
+
+        if (!binary || opcode == Control.Opcode.LINE) {
+            StringBuilder builder = new StringBuilder(verb);
+
+            for (Object arg : args) {
+                builder.append(' ').append(arg);
+            }
+
+            if (binary) {
+                sendFrame(new Control.Message(Control.Opcode.LINE, builder.toString()));
+            } else {
+                ctlWriter.println(builder);
+            }
+            return;
+        }
+
+        sendFrame(new Control.Message(opcode, args));
+    }
+
+    // tokens as split by Control.Opcode.tokens: the verb, then one token per argument.
+    public void sendCommand(String[] tokens) {
+        sendCommand(tokens[0], (Object[]) Arrays.copyOfRange(tokens, 1, tokens.length));
+    }
+
+    // the length following PUT, MPUT and DPUT.
+    public void sendLength(long length) {
+        if (!binary) {
+            ctlWriter.println(length);
+            return;
+        }
+
+        sendFrame(new Control.Message(Control.Opcode.VALUE, length));
+    }
+
+    private void sendFrame(Control.Message msg) {
+        try {
+            msg.write(ctlOut);
+            ctlOut.flush();
+        } catch (IOException e) {
+            System.out.println("control message cannot be sent : " + e.getMessage());
+        }
+    }
+
+    // a body line following a reply.
+    public String recvControlMessage() throws IOException {
+        if (binary) {
+            Control.Message msg = Control.Message.read(ctlIn);
+
+            if (msg == null) {
+                throw new EOFException("control channel closed");
+            }
+
+            return msg.toString();
+        }
+
+        return ctlReader.readLine().strip();
+    }
+
+    // A reply as status code plus fields. Binary replies carry typed fields;
+    // a text reply has its phrase as the only field.
+    public Control.Message recvReply() throws IOException {
+        if (binary) {
+            Control.Message msg = Control.Message.read(ctlIn);
+
+            if (msg == null) {
+                throw new EOFException("control channel closed");
+            }
+
+            return msg;
+        }
+
+        String resp = recvControlMessage();
+
+        return new Control.Message(Integer.parseInt(resp.split(" ")[0]), parsePhrase(resp));
+    }
+
+    public static void printReply(Control.Message reply) {
+        if (!reply.isSuccess()) {
+            System.out.print("Failed - ");
+        }
+
+        System.out.println(reply);
+    }
+
+    public static boolean isSuccess(String msg) {
+        int statusCode = Integer.parseInt(msg.split(" ")[0]);
+
+        return statusCode / 100 == 2;
+    }
+
+    public static String parsePhrase(String msg) {
+        int splitPivot = msg.indexOf(" ");
+        if (splitPivot != -1) {
+            return msg.substring(splitPivot + 1);
+        }
+
+        return msg;
+    }
+
+    public static void printRecvControlMessage(String resp) {
+        if (resp == null || resp.length() == 0)
+            return;
+
+        if (!isSuccess(resp)) {
+            System.out.print("Failed - ");
+        }
+
+        System.out.println(parsePhrase(resp));
+    }
+
+    public void printRecvControlMessage() throws IOException {
+        printReply(recvReply());
+    }
+
+    private void send(int seqNo, int CHKsum, int length, byte[] data, boolean timeout, OutputStream out) throws IOException {
+        byte[] chunk = new byte[SEQ_NO_SIZE + CHK_SUM_SIZE + SIZE_SIZE + CHUNK_SIZE];
+
+        // make SeqNo
+        chunk[0] = (byte)(seqNo);
+
+        // make CHKSum
+        chunk[SEQ_NO_SIZE + 0] = (byte)((CHKsum >> 8) & 0xFF);
+        chunk[SEQ_NO_SIZE + 1] = (byte)(CHKsum & 0xFF);
+
+        // make Size
+        chunk[SEQ_NO_SIZE + CHK_SUM_SIZE + 0] = (byte)((length >> 8) & 0xFF);
+        chunk[SEQ_NO_SIZE + CHK_SUM_SIZE + 1] = (byte)(length & 0xFF);
+
+        // make Data
+        System.arraycopy(data, 0, chunk, SEQ_NO_SIZE + CHK_SUM_SIZE + SIZE_SIZE, length);
+
+        out.write(chunk);
+    }
+
+    // The data channel is opened once per session: the server hands out a token, we connect to the
+    // data port (already listening, so no retry loop) and present it. Transfers then reuse the socket.
+    // With -Dftp.data.tls=true the channel is encrypted once the token is through.
+    private void openDataChannel() throws IOException {
+        final boolean secure = Boolean.getBoolean(SR.DataChannel.TLS_PROPERTY);
+
+        sendControlMessage(secure ? "DATA TLS" : "DATA");
+
+        Control.Message reply = recvReply();
+        if (!reply.isSuccess()) {
+            throw new IOException(reply.toString());
+        }
+
+        // "Data channel token <token>"
+        final long token = binary ? reply.getLong(0) : Long.parseLong(parseLastWord(reply.getString(0)));
+
+        Socket dataSocket = new Socket(host, dataPort);
+        dataSocket.setTcpNoDelay(true);
+
+        DataOutputStream out = new DataOutputStream(dataSocket.getOutputStream());
+        out.writeLong(token);
+        out.flush();
+
+        if (secure) {
+            dataChannel = SR.DataChannel.connect(dataSocket, host, dataPort);
+            System.out.println("Data channel: " + dataChannel.describe());
+        } else {
+            dataChannel = new SR.DataChannel(dataSocket);
+        }
+    }
+
+    public void close() {
+        try {
+            if (dataChannel != null) dataChannel.close();
+            if (ctlSocket != null) ctlSocket.close();
+        } catch (IOException e) {
+            System.out.print("socket cannot be closed");
+        }
+    }
+
+    public static String parseLastWord(String msg) {
+        return msg.substring(msg.lastIndexOf(' ') + 1);
+    }
+
+    // true once the whole stream went through.
+    public boolean sendData(InputStream inp, String name, long length) {
+        try {
+            sendLength(length);
+
+            Control.Message reply = recvReply();
+            if (!reply.isSuccess()) {
+                printReply(reply);
+                return false;
+            }
+
+            // "Ready to receive, transfer <id>"
+            final int transferId = binary ? (int) reply.getLong(0) : Integer.parseInt(parseLastWord(reply.getString(0)));
+
+            System.out.println(name + " transferred  / " + length + " bytes");
+
+            SR.Codec codec = createCodec();
+            SR.Sender sender = new Sender(dataChannel, transferId, ReceiveDrop, ReceiveTimeout, ReceiveBitErr, codec);
+            sender.setProfile(profile);
+            sender.setFec(fec);
+            sender.setChunkSizer(chunks);
+            sender.send(inp, length);
+
+            if (codec != null) codec.close();
+
+            System.out.println("  Completed...");
+
+            ReceiveDrop.clear();
+            ReceiveTimeout.clear();
+            ReceiveBitErr.clear();
+
+            return true;
+        } catch (Exception e) {
+            System.out.println("send data failed : " + e.getMessage());
+            return false;
+        }
+    }
+
+    // true once the whole file arrived. A transfer that breaks off deletes the file it started;
+    // a GET the server refused leaves any local file of that name alone.
+    public boolean recvData(String name) {
+        try {
+            Control.Message reply = recvReply();
+            if (!reply.isSuccess()) {
+                printReply(reply);
+                return false;
+            }
+
+            // "Containing <bytes> bytes in total, transfer <id>"
+            final long length;
+            final int transferId;
+            if (binary) {
+                length = reply.getLong(0);
+                transferId = (int) reply.getLong(1);
+            } else {
+                length = Long.parseLong(reply.getString(0).split(" ")[1]);
+                transferId = Integer.parseInt(parseLastWord(reply.getString(0)));
+            }
+
+            System.out.println("Received " + name + " / " + length + " bytes");
+
+            SR.Codec codec = createCodec();
+
+            FileOutputStream oup = new FileOutputStream(name);
+            try (oup) {
+                SR.Receiver receiver = new SR.Receiver(dataChannel, transferId, codec);
+                receiver.recv(oup, length);
+            } catch (IOException e) {
+                new File(name).delete();
+                throw e;
+            } finally {
+                if (codec != null) codec.close();
+            }
+
+            System.out.println("  Completed...");
+            return true;
+        } catch (IOException e) {
+            System.out.println("recv data failed : " + e.getMessage());
+            return false;
+        }
+    }
+
+    public void recvBatch(String name) {
+        recvBatch(name, false);
+    }
+
+    public void recvBatch(String name, boolean packed) {
+        try {
+            Control.Message reply = recvReply();
+            if (!reply.isSuccess()) {
+                printReply(reply);
+                return;
+            }
+
+            // "Containing <files> files, <bytes> bytes in total, transfer <id>"
+            final long files, length;
+            final int transferId;
+            if (binary) {
+                files = reply.getLong(0);
+                length = reply.getLong(1);
+                transferId = (int) reply.getLong(2);
+            } else {
+                String[] words = reply.getString(0).split(" ");
+                files = Long.parseLong(words[1]);
+                length = Long.parseLong(words[3]);
+                transferId = Integer.parseInt(parseLastWord(reply.getString(0)));
+            }
+
+            System.out.println("Received " + name + " / " + files + " files, " + length + " bytes");
+
+            Batch.Unpacker oup = packed ? new Batch.PackOutputStream(Path.of(name)) : new Batch.FileQueueOutputStream(Path.of(name));
+
+            SR.Codec codec = createCodec();
+            try {
+                SR.Receiver receiver = new SR.Receiver(dataChannel, transferId, codec);
+                receiver.recv(oup, length);
+
+                oup.close();
+            } catch (IOException e) {
+                // the file it was writing is incomplete
+                oup.abort();
+                throw e;
+            } finally {
+                if (codec != null) codec.close();
+            }
+
+            System.out.println("  Completed...");
+        } catch (IOException e) {
+            System.out.println("recv data failed : " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package Control;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+// One binary control frame: [code(2)][field count(1)] then each field as [type(1)][value].
+// Requests carry an Opcode as code, replies the status code.
+public class Message {
+    public static final byte TYPE_LONG = 'J';
+    public static final byte TYPE_STRING = 'S';
+
+    private int code;
+    private Object[] fields;
+
+    public Message(int code, Object... fields) {
+        this.code = code;
+        this.fields = fields;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public boolean isSuccess() {
+        return code / 100 == 2;
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    public Object get(int i) {
+        return fields[i];
+    }
+
+    public long getLong(int i) {
+        return (Long) fields[i];
+    }
+
+    public String getString(int i) {
+        return fields[i].toString();
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeShort(code);
+        out.writeByte(fields.length);
+
+        for (Object field : fields) {
+            if (field instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) field);
+            } else {
+                out.writeByte(TYPE_STRING);
+                out.writeUTF(field.toString());
+            }
+        }
+    }
+
+    // null when the peer closed the channel between frames.
+    public static Message read(DataInputStream in) throws IOException {
+        int high = in.read();
+        if (high == -1) {
+            return null;
+        }
+
+        int code = (high << 8) | in.readUnsignedByte();
+        Object[] fields = new Object[in.readUnsignedByte()];
+
+        for (int i = 0; i < fields.length; ++i) {
+            byte type = in.readByte();
+
+            if (type == TYPE_LONG) {
+                fields[i] = in.readLong();
+            } else if (type == TYPE_STRING) {
+                fields[i] = in.readUTF();
+            } else {
+                throw new IOException("unknown field type " + type);
+            }
+        }
+
+        return new Message(code, fields);
+    }
+
+    // fields separated by spaces, which for replies reads like the text protocol's phrase.
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < fields.length; ++i) {
+            if (i != 0) {
+                builder.append(' ');
+            }
+
+            builder.append(fields[i]);
+        }
+
+        return builder.toString();
+    }
+}
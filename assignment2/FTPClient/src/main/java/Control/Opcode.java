@@ -0,0 +1,55 @@
+package Control;
+
+// Command verbs of the binary control protocol, each a number in the two-byte code of a Message
+// instead of a parsed word.
+public class Opcode {
+    // a text control line, for anything without an opcode of its own
+    public static final int LINE = 0;
+    // a bare value following a command, such as the length after PUT
+    public static final int VALUE = 1;
+
+    private static final String[] VERBS = {
+            null, null, "CD", "LIST", "PLIST", "GET", "PUT", "DATA", "MGET", "MPUT", "PACK",
+            "HASH", "STAT", "DPUT", "MODE", "DROP", "TIMEOUT", "BITERROR", "STATS", "THROTTLE", "EMULATE", "FEC"
+    };
+
+    // arguments each verb takes; the last one keeps its spaces, so it can name a path. -1: one per word.
+    private static final int[] ARGS = {
+            1, 1, 1, 1, 4, 1, 1, 1, 1, 1, 2,
+            1, 1, 1, 1, 1, 1, 1, 1, 2, -1, 1
+    };
+
+    public static String verb(int opcode) {
+        return (opcode >= 0 && opcode < VERBS.length) ? VERBS[opcode] : null;
+    }
+
+    public static int of(String verb) {
+        for (int i = 0; i < VERBS.length; ++i) {
+            if (VERBS[i] != null && VERBS[i].equalsIgnoreCase(verb)) {
+                return i;
+            }
+        }
+
+        return LINE;
+    }
+
+    public static int arguments(int opcode) {
+        return (opcode >= 0 && opcode < ARGS.length) ? ARGS[opcode] : 1;
+    }
+
+    // a text command line as its verb and arguments, one token each, as a frame carries them as fields.
+    // Anything without an opcode keeps the rest of the line as one argument.
+    public static String[] tokens(String line) {
+        String verb = line.strip().split(" ", 2)[0];
+
+        return tokens(line, arguments(of(verb)));
+    }
+
+    public static String[] tokens(String line, int arguments) {
+        if (arguments < 0) {
+            return line.strip().split(" +");
+        }
+
+        return line.strip().split(" ", arguments + 1);
+    }
+}
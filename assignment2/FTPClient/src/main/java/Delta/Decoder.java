@@ -0,0 +1,94 @@
+package Delta;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+// Rebuilds a file on the fly from the instruction stream made by Encoder,
+// reading referenced blocks from the old copy of the file.
+public class Decoder extends OutputStream {
+    private RandomAccessFile base;
+    private int blockSize;
+    private OutputStream out;
+
+    private int op = -1;
+    private byte[] header = new byte[8];
+    private int headerPos = 0;
+    private long literalRemaining = 0;
+
+    private byte[] copyBuf;
+
+    public Decoder(RandomAccessFile base, int blockSize, OutputStream out) {
+        this.base = base;
+        this.blockSize = blockSize;
+        this.out = out;
+
+        copyBuf = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        while (len > 0) {
+            if (literalRemaining > 0) {
+                final int n = (int)Math.min(len, literalRemaining);
+
+                out.write(data, off, n);
+                off += n;
+                len -= n;
+                literalRemaining -= n;
+                continue;
+            }
+
+            if (op == -1) {
+                op = data[off++];
+                --len;
+                headerPos = 0;
+
+                if (op != Encoder.OP_COPY && op != Encoder.OP_LITERAL) {
+                    throw new IOException("invalid delta instruction");
+                }
+                continue;
+            }
+
+            header[headerPos++] = data[off++];
+            --len;
+
+            if (op == Encoder.OP_LITERAL && headerPos == 4) {
+                literalRemaining = ByteBuffer.wrap(header, 0, 4).getInt();
+                op = -1;
+            } else if (op == Encoder.OP_COPY && headerPos == 8) {
+                ByteBuffer values = ByteBuffer.wrap(header);
+                copyBlocks(values.getInt(), values.getInt());
+                op = -1;
+            }
+        }
+    }
+
+    private void copyBlocks(int first, int count) throws IOException {
+        if (base == null) {
+            throw new IOException("no base file to copy blocks from");
+        }
+
+        base.seek((long)first * blockSize);
+
+        for (int i = 0; i < count; ++i) {
+            base.readFully(copyBuf);
+            out.write(copyBuf);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+
+        if (op != -1 || literalRemaining > 0) {
+            throw new IOException("truncated delta");
+        }
+    }
+}
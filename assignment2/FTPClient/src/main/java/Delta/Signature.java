@@ -0,0 +1,93 @@
+package Delta;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class Signature {
+    public static final int MIN_BLOCK_SIZE = 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    public static class Block {
+        public int index;
+        public int weak;
+        public String strong;
+
+        public Block(int index, int weak, String strong) {
+            this.index = index;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        @Override
+        public String toString() {
+            return weak + "," + strong;
+        }
+    }
+
+    private int blockSize;
+    private List<Block> blocks = new ArrayList<Block>();
+    private HashMap<Integer, List<Block>> lookup = new HashMap<Integer, List<Block>>();
+
+    public Signature(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    // roughly sqrt(length) keeps both the signature list and the per-block overhead small.
+    public static int chooseBlockSize(long length) {
+        final int size = (int)Math.sqrt((double)length) & ~0x7;
+
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    // only whole blocks are signed; a short tail is always sent as literal data.
+    public static Signature of(File file) throws IOException {
+        Signature signature = new Signature(chooseBlockSize(file.exists() ? file.length() : 0));
+
+        if (!file.isFile()) {
+            return signature;
+        }
+
+        try (InputStream inp = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] block = new byte[signature.blockSize];
+
+            while (inp.readNBytes(block, 0, block.length) == block.length) {
+                signature.add(new Checksum(block, 0, block.length).getValue(), Checksum.strong(block, 0, block.length));
+            }
+        }
+
+        return signature;
+    }
+
+    public void add(int weak, String strong) {
+        Block block = new Block(blocks.size(), weak, strong);
+
+        blocks.add(block);
+        lookup.computeIfAbsent(weak, k -> new ArrayList<Block>()).add(block);
+    }
+
+    public Block find(int weak, byte[] window, int offset) {
+        List<Block> candidates = lookup.get(weak);
+        if (candidates == null) {
+            return null;
+        }
+
+        final String strong = Checksum.strong(window, offset, blockSize);
+        for (Block block : candidates) {
+            if (block.strong.equals(strong)) {
+                return block;
+            }
+        }
+
+        return null;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public List<Block> getBlocks() {
+        return blocks;
+    }
+}
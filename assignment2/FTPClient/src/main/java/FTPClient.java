@@ -2,302 +2,468 @@ import SR.Sender;
 
 import javax.print.DocFlavor;
 import java.io.*;
-import java.net.Socket;
 import java.net.SocketException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 
-class Connection {
+class FTPClient {
+    private static final int PAGE_SIZE = 100;
+    private static final int PIPELINE_DEPTH = 64;
+
+    private Connection conn;
+    private boolean isRunning;
+
     private String host;
+    private int ctlPort;
     private int dataPort;
+    private TransferManager transfers;
 
-    private Socket ctlSocket;
-    private PrintWriter ctlWriter;
-    private BufferedReader ctlReader;
+    private LocalCache cache = new LocalCache(System.getProperty("ftp.cache.dir", ".ftpcache"));
+    private boolean useCache = false;
 
-    private static final int SEQ_NO_SIZE = 1;
-    private static final int CHK_SUM_SIZE = 2;
-    private static final int SIZE_SIZE = 2;
-    private static final int CHUNK_SIZE = 1000;
+    public FTPClient(String host, int ctlPort, int dataPort) throws IOException {
+        this.host = host;
+        this.ctlPort = ctlPort;
+        this.dataPort = dataPort;
 
-    private static final int WINDOW_SIZE = 5;
-    private static final int SEQ_NO_INTERVAL = 15;
+        conn = new Connection(host, ctlPort, dataPort, System.getProperty("ftp.control", "text").equals("binary"));
 
-    public List<Long> ReceiveDrop = new ArrayList<Long>();
-    public List<Long> ReceiveTimeout = new ArrayList<Long>();
-    public List<Long> ReceiveBitErr = new ArrayList<Long>();
+        Scanner reader = new Scanner(System.in);
 
-    public Connection(String host, int ctlPort, int dataPort) throws IOException {
-        this.host = host;
-        this.dataPort = dataPort;
+        isRunning = true;
+        while (isRunning && reader.hasNext()) {
+            execute(reader.nextLine().strip());
+        }
 
-        ctlSocket = new Socket(host, ctlPort);
-        ctlWriter = new PrintWriter(ctlSocket.getOutputStream(), true);
-        ctlReader = new BufferedReader(new InputStreamReader(ctlSocket.getInputStream()));
-    }
+        // queued jobs still run; CANCEL ALL first to quit straight away.
+        if (transfers != null) {
+            final int pending = transfers.getPending();
+            if (pending != 0) {
+                System.out.println("waiting for " + pending + " background jobs");
+            }
 
-    public void sendControlMessage(String msg) {
-        ctlWriter.println(msg);
-    }
+            try {
+                transfers.shutdown();
+            } catch (InterruptedException e) {
+                System.out.println("interrupted while waiting for background jobs");
+            }
+        }
 
-    public String recvControlMessage() throws IOException {
-        return ctlReader.readLine().strip();
+        conn.close();
     }
 
-    public static boolean isSuccess(String msg) {
-        int statusCode = Integer.parseInt(msg.split(" ")[0]);
+    private void execute(String recvMsg) throws IOException {
+        String[] tokens = tokenize(recvMsg);
 
-        return statusCode / 100 == 2;
-    }
+        switch (tokens[0].toUpperCase()) {
+            case "LIST":
+                conn.sendCommand(tokens);
+                cmd_LIST(tokens);
+                break;
 
-    public static String parsePhrase(String msg) {
-        int splitPivot = msg.indexOf(" ");
-        if (splitPivot != -1) {
-            return msg.substring(splitPivot + 1);
-        }
+            case "MGET":
+                cmd_MGET(tokens);
+                break;
 
-        return msg;
-    }
+            case "MPUT":
+                cmd_MPUT(tokens);
+                break;
 
-    public static void printRecvControlMessage(String resp) {
-        if (resp == null || resp.length() == 0)
-            return;
+            case "PACK":
+                cmd_PACK(tokens);
+                break;
 
-        if (!isSuccess(resp)) {
-            System.out.print("Failed - ");
-        }
+            case "PLIST":
+                cmd_PLIST(tokens);
+                break;
 
-        System.out.println(parsePhrase(resp));
-    }
+            case "GET":
+                cmd_GET(tokens);
+                break;
 
-    public void printRecvControlMessage() throws IOException {
-        printRecvControlMessage(recvControlMessage());
-    }
+            case "PUT":
+                cmd_PUT(tokens);
+                break;
 
-    private void send(int seqNo, int CHKsum, int length, byte[] data, boolean timeout, OutputStream out) throws IOException {
-        byte[] chunk = new byte[SEQ_NO_SIZE + CHK_SUM_SIZE + SIZE_SIZE + CHUNK_SIZE];
+            case "DPUT":
+                cmd_DPUT(tokens);
+                break;
 
-        // make SeqNo
-        chunk[0] = (byte)(seqNo);
+            case "MODE":
+                conn.sendCommand(tokens);
+                cmd_MODE(tokens);
+                break;
 
-        // make CHKSum
-        chunk[SEQ_NO_SIZE + 0] = (byte)((CHKsum >> 8) & 0xFF);
-        chunk[SEQ_NO_SIZE + 1] = (byte)(CHKsum & 0xFF);
+            case "CACHE":
+                cmd_CACHE(tokens);
+                break;
 
-        // make Size
-        chunk[SEQ_NO_SIZE + CHK_SUM_SIZE + 0] = (byte)((length >> 8) & 0xFF);
-        chunk[SEQ_NO_SIZE + CHK_SUM_SIZE + 1] = (byte)(length & 0xFF);
+            case "EMULATE":
+                cmd_EMULATE(tokens);
+                break;
 
-        // make Data
-        System.arraycopy(data, 0, chunk, SEQ_NO_SIZE + CHK_SUM_SIZE + SIZE_SIZE, length);
+            case "FEC":
+                cmd_FEC(tokens);
+                break;
 
-        out.write(chunk);
-    }
+            case "SCRIPT":
+                cmd_SCRIPT(tokens);
+                break;
 
-    public void sendData(InputStream inp, String name, long length) {
-        Socket socket = null;
-        try {
-            while (true) {
-                socket = null;
-
-                try {
-                    socket = new Socket(host, dataPort);
-                    break;
-                } catch (Exception e) {
-                    // ignore exception
-                }
-            }
+            case "BG":
+                cmd_BG(tokens);
+                break;
 
-            sendControlMessage(Long.toString(length));
+            case "JOBS":
+                cmd_JOBS(tokens);
+                break;
 
-            String respMsg = recvControlMessage();
-            if (!Connection.isSuccess(respMsg)) {
-                Connection.printRecvControlMessage(respMsg);
-                return;
-            }
+            case "CANCEL":
+                cmd_CANCEL(tokens);
+                break;
 
-            System.out.println(name + " transferred  / " + length + " bytes");
+            case "PRIORITY":
+                cmd_PRIORITY(tokens);
+                break;
 
-            SR.Sender sender = new Sender(socket, ReceiveDrop, ReceiveTimeout, ReceiveBitErr);
-            sender.send(inp, length);
+            case "QUIT":
+                isRunning = false;
+                break;
 
-            System.out.println("  Completed...");
+            case "DROP":
+                cmd_DROP(tokens);
+                break;
 
-            ReceiveDrop.clear();
-            ReceiveTimeout.clear();
-            ReceiveBitErr.clear();
-        } catch (Exception e) {
-            System.out.println("send data failed : " + e.getMessage());
-        } finally {
-            try {
-                if (socket != null) socket.close();
-            } catch (IOException e) {
-                System.out.print("socket cannot be closed");
-            }
+            case "TIMEOUT":
+                cmd_TIMEOUT(tokens);
+                break;
+
+            case "BITERROR":
+                cmd_BITERROR(tokens);
+                break;
+
+            default:
+                conn.sendCommand(tokens);
+                conn.printRecvControlMessage();
+                break;
         }
     }
 
-    public void recvData(String name) {
-        Socket socket = null;
+    // a typed line as the verb and one token per argument, the last keeping its spaces; the client's
+    // own commands split here, everything else as its frame will carry it.
+    private static String[] tokenize(String line) {
+        switch (line.strip().split(" ", 2)[0].toUpperCase()) {
+            case "PLIST":
+            case "BG":
+            case "PRIORITY":
+                return Control.Opcode.tokens(line, 2);
+
+            default:
+                return Control.Opcode.tokens(line);
+        }
+    }
+
+    private void cmd_LIST(String[] tokens) throws IOException {
+        Control.Message reply = conn.recvReply();
+
+        if (!reply.isSuccess()) {
+            Connection.printReply(reply);
+            return;
+        }
+
+        long entryCnt = conn.isBinary() ? reply.getLong(0) : Integer.parseInt(reply.getString(0).replaceAll("[^0-9]", ""));
+
+        for (int i = 0; i < entryCnt; ++i) {
+            System.out.println(conn.recvControlMessage());
+        }
+    }
+
+    // SCRIPT <file>: metadata commands read from file are sent tagged without waiting for each reply.
+    // The server answers them out of order; output is still printed in script order.
+    private void cmd_SCRIPT(String[] tokens) throws IOException {
+        if (tokens.length != 2) {
+            System.out.println("syntax error");
+            return;
+        }
+
+        if (conn.isBinary()) {
+            System.out.println("tagged commands need the text control protocol");
+            return;
+        }
+
+        List<String> commands = new ArrayList<String>();
         try {
-            while (true) {
-                socket = null;
-
-                try {
-                    socket = new Socket(host, dataPort);
-                    break;
-                } catch (Exception e) {
-                    // ignore exception
+            for (String line : Files.readAllLines(Path.of(tokens[1]))) {
+                line = line.strip();
+
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                switch (line.split(" ")[0].toUpperCase()) {
+                    case "LIST":
+                    case "STAT":
+                    case "HASH":
+                    case "CD":
+                        commands.add(line);
+                        break;
+
+                    default:
+                        System.out.println("only LIST, STAT, HASH and CD can be scripted: " + line);
+                        return;
                 }
             }
+        } catch (IOException e) {
+            System.out.println("cannot read " + tokens[1] + " : " + e.getMessage());
+            return;
+        }
 
-            String respMsg = recvControlMessage();
-            if (!Connection.isSuccess(respMsg)) {
-                Connection.printRecvControlMessage(respMsg);
-                return;
+        String[] outputs = new String[commands.size()];
+        int sent = 0, received = 0, printed = 0;
+
+        while (printed < commands.size()) {
+            // a bounded number of commands in flight keeps both socket buffers from filling up.
+            while (sent < commands.size() && sent - received < PIPELINE_DEPTH) {
+                conn.sendControlMessage("#" + sent + " " + commands.get(sent));
+                ++sent;
             }
 
-            final long length = Long.parseLong(Connection.parsePhrase(respMsg).replaceAll("[^0-9]", ""));
+            // "#<tag> <status> <phrase>"
+            String resp = conn.recvControlMessage();
+            int tag = Integer.parseInt(resp.substring(1, resp.indexOf(' ')));
+            resp = Connection.parsePhrase(resp);
 
-            System.out.println("Received " + name + " / " + length + " bytes");
+            StringBuilder output = new StringBuilder("> " + commands.get(tag) + "\n");
 
-            FileOutputStream oup = new FileOutputStream(name);
+            if (!Connection.isSuccess(resp)) {
+                output.append("Failed - ");
+            }
+            output.append(Connection.parsePhrase(resp)).append('\n');
 
-            SR.Receiver receiver = new SR.Receiver(socket);
-            receiver.recv(oup, length);
+            if (Connection.isSuccess(resp) && commands.get(tag).toUpperCase().startsWith("LIST")) {
+                int entryCnt = Integer.parseInt(Connection.parsePhrase(resp).replaceAll("[^0-9]", ""));
 
-            if (oup != null) oup.close();
+                for (int i = 0; i < entryCnt; ++i) {
+                    output.append(conn.recvControlMessage()).append('\n');
+                }
+            }
 
-            System.out.println("  Completed...");
-        } catch (IOException e) {
-            System.out.println("recv data failed : " + e.getMessage());
-        } finally {
-            try {
-                if (socket != null) socket.close();
-            } catch (IOException e) {
-                System.out.print("socket cannot be closed");
+            outputs[tag] = output.toString();
+            ++received;
+
+            while (printed < outputs.length && outputs[printed] != null) {
+                System.out.print(outputs[printed]);
+                outputs[printed++] = null;
             }
         }
     }
-}
 
-class FTPClient {
-    private Connection conn;
-    private boolean isRunning;
+    // BG GET <path> | BG PUT <path>: the transfer is queued and runs on a session of its own,
+    // relative to the current remote directory, while the prompt goes on.
+    private void cmd_BG(String[] tokens) throws IOException {
+        if (tokens.length != 3 || !(tokens[1].equalsIgnoreCase("GET") || tokens[1].equalsIgnoreCase("PUT"))) {
+            System.out.println("syntax error");
+            return;
+        }
 
-    public FTPClient(String host, int ctlPort, int dataPort) throws IOException {
-        conn = new Connection(host, ctlPort, dataPort);
+        conn.sendControlMessage("CD");
 
-        Scanner reader = new Scanner(System.in);
+        Control.Message reply = conn.recvReply();
+        if (!reply.isSuccess()) {
+            Connection.printReply(reply);
+            return;
+        }
 
-        isRunning = true;
-        while (isRunning && reader.hasNext()) {
-            execute(reader.nextLine().strip());
+        if (transfers == null) {
+            transfers = new TransferManager(host, ctlPort, dataPort, conn.isBinary(),
+                    Integer.getInteger(TransferManager.PARALLEL_PROPERTY, TransferManager.DEFAULT_PARALLEL));
         }
+
+        TransferManager.Job job = transfers.submit(tokens[1].toUpperCase(), tokens[2], reply.getString(0), 0);
+        System.out.println("Job " + job.getId() + " queued");
     }
 
-    private void execute(String recvMsg) throws IOException {
-        String[] tokens = null;
+    // JOBS: every job with its state; finished ones are dropped from the list afterwards.
+    private void cmd_JOBS(String[] tokens) {
+        if (transfers == null) {
+            System.out.println("no jobs");
+            return;
+        }
 
-        {
-            String[] tmp = recvMsg.strip().split(" ");
+        for (String line : transfers.describe()) {
+            System.out.println(line);
+        }
 
-            if (tmp.length == 1) {
-                tokens = new String[1];
+        transfers.purge();
+    }
 
-                tokens[0] = tmp[0];
-            } else if (tmp.length > 1) {
-                tokens = new String[2];
+    // CANCEL <job> | CANCEL ALL
+    private void cmd_CANCEL(String[] tokens) {
+        if (tokens.length != 2) {
+            System.out.println("syntax error");
+            return;
+        }
 
-                tokens[0] = tmp[0];
+        if (transfers == null) {
+            System.out.println("no such job");
+            return;
+        }
+
+        if (tokens[1].equalsIgnoreCase("ALL")) {
+            System.out.println(transfers.cancelAll() + " jobs cancelled");
+            return;
+        }
 
-                StringBuilder builder = new StringBuilder();
+        try {
+            System.out.println(transfers.cancel(Integer.parseInt(tokens[1])) ? "Job cancelled" : "no such job");
+        } catch (NumberFormatException e) {
+            System.out.println("syntax error");
+        }
+    }
 
-                for (int i = 1; i < tmp.length; ++i) {
-                    if (i != 1) {
-                        builder.append(' ');
-                    }
+    // PRIORITY <job> <priority>: higher runs first; only queued jobs can be moved.
+    private void cmd_PRIORITY(String[] tokens) {
+        if (tokens.length != 3) {
+            System.out.println("syntax error");
+            return;
+        }
 
-                    builder.append(tmp[i]);
-                }
+        try {
+            final int id = Integer.parseInt(tokens[1]);
+            final int priority = Integer.parseInt(tokens[2]);
 
-                tokens[1] = builder.toString();
+            if (transfers != null && transfers.setPriority(id, priority)) {
+                System.out.println("Job " + id + " priority " + priority);
+            } else {
+                System.out.println("no such queued job");
             }
+        } catch (NumberFormatException e) {
+            System.out.println("syntax error");
         }
+    }
 
-        if (tokens == null) {
+    // PLIST <glob> <path>: the listing is fetched and printed page by page.
+    private void cmd_PLIST(String[] tokens) throws IOException {
+        if (tokens.length != 3) {
+            System.out.println("syntax error");
             return;
         }
 
-        switch (tokens[0].toUpperCase()) {
-            case "LIST":
-                conn.sendControlMessage(recvMsg);
-                cmd_LIST(tokens);
-                break;
+        String cursor = "-";
+        do {
+            conn.sendCommand("PLIST", cursor, (long) PAGE_SIZE, tokens[1], tokens[2]);
 
-            case "GET":
-                conn.sendControlMessage(recvMsg);
-                cmd_GET(tokens);
-                break;
+            Control.Message reply = conn.recvReply();
+            if (!reply.isSuccess()) {
+                Connection.printReply(reply);
+                return;
+            }
 
-            case "PUT":
-                cmd_PUT(tokens, recvMsg);
-                break;
+            // "Comprising <count> entries, next <cursor>"
+            final long entryCnt;
+            if (conn.isBinary()) {
+                entryCnt = reply.getLong(0);
+                cursor = reply.getString(1);
+            } else {
+                String[] words = reply.getString(0).split(" ");
+                entryCnt = Integer.parseInt(words[1]);
+                cursor = words[4];
+            }
 
-            case "QUIT":
-                isRunning = false;
-                break;
+            for (int i = 0; i < entryCnt; ++i) {
+                System.out.println(conn.recvControlMessage());
+            }
+        } while (!cursor.equals("-"));
+    }
 
-            case "DROP":
-                cmd_DROP(tokens);
-                break;
+    private void cmd_GET(String[] tokens) throws IOException {
+        if (tokens.length != 2) {
+            System.out.println("syntax error");
+            return;
+        }
 
-            case "TIMEOUT":
-                cmd_TIMEOUT(tokens);
-                break;
+        final String name = Path.of(tokens[1]).getFileName().toString();
 
-            case "BITERROR":
-                cmd_BITERROR(tokens);
-                break;
+        // in cache mode the server announces the digest first, and a hit skips the transfer.
+        String digest = null;
+        if (useCache) {
+            conn.sendCommand("HASH", tokens[1]);
 
-            default:
-                conn.sendControlMessage(recvMsg);
-                conn.printRecvControlMessage();
-                break;
+            Control.Message reply = conn.recvReply();
+            if (!reply.isSuccess()) {
+                Connection.printReply(reply);
+                return;
+            }
+
+            // "<algorithm> <digest>"
+            digest = conn.isBinary() ? reply.getString(1) : Connection.parsePhrase(reply.getString(0));
+
+            if (cache.restore(digest, name)) {
+                System.out.println(name + " restored from local cache");
+                return;
+            }
         }
-    }
 
-    private void cmd_LIST(String[] tokens) throws IOException {
-        String resp = conn.recvControlMessage();
+        conn.sendCommand(tokens);
 
-        if (!Connection.isSuccess(resp)) {
-            Connection.printRecvControlMessage(resp);
+        // a refused or broken transfer has already said so, and left nothing worth caching
+        if (!conn.recvData(name)) {
             return;
         }
 
-        int entryCnt = Integer.parseInt(Connection.parsePhrase(resp).replaceAll("[^0-9]", ""));
+        if (digest != null && !cache.store(digest, name)) {
+            System.out.println("  " + name + " does not match its digest, not cached");
+        }
+    }
 
-        for (int i = 0; i < entryCnt; ++i) {
-            System.out.println(conn.recvControlMessage());
+    // EMULATE [OFF | <impairment>=<value> ...]: the same impairments on both directions of the data channel.
+    private void cmd_EMULATE(String[] tokens) throws IOException {
+        if (tokens.length >= 2) {
+            try {
+                conn.setProfile((tokens.length == 2 && tokens[1].equalsIgnoreCase("OFF"))
+                        ? null : SR.Emulator.Profile.parse(Arrays.copyOfRange(tokens, 1, tokens.length)));
+            } catch (IllegalArgumentException e) {
+                System.out.println("syntax error : " + e.getMessage());
+                return;
+            }
         }
+
+        conn.sendCommand(tokens);
+        conn.printRecvControlMessage();
+    }
+
+    // FEC [OFF | AUTO | <group size>]: parity frames in both directions of the data channel.
+    private void cmd_FEC(String[] tokens) throws IOException {
+        if (tokens.length == 2) {
+            try {
+                conn.setFec(SR.Sender.parseFec(tokens[1].trim()));
+            } catch (IllegalArgumentException e) {
+                System.out.println("syntax error : " + e.getMessage());
+                return;
+            }
+        }
+
+        conn.sendCommand(tokens);
+        conn.printRecvControlMessage();
     }
 
-    private void cmd_GET(String[] tokens) {
+    private void cmd_CACHE(String[] tokens) {
         if (tokens.length != 2) {
             System.out.println("syntax error");
             return;
         }
 
-        final String name = Path.of(tokens[1]).getFileName().toString();
-
-        conn.recvData(name);
+        useCache = tokens[1].equalsIgnoreCase("ON");
+        System.out.println("Cache mode " + (useCache ? "on" : "off"));
     }
 
-    private void cmd_PUT(String[] tokens, String recvMsg) throws IOException {
+    private void cmd_PUT(String[] tokens) throws IOException {
         if (tokens.length != 2) {
             System.out.println("syntax error");
             return;
@@ -307,7 +473,7 @@ class FTPClient {
             FileInputStream inp = new FileInputStream(tokens[1]);
             File file = new File(tokens[1]);
 
-            conn.sendControlMessage(recvMsg);
+            conn.sendCommand(tokens);
 
             conn.sendData(inp, file.getName(), file.length());
         } catch (FileNotFoundException e) {
@@ -315,6 +481,116 @@ class FTPClient {
         }
     }
 
+    private void cmd_MGET(String[] tokens) {
+        if (tokens.length != 2) {
+            System.out.println("syntax error");
+            return;
+        }
+
+        conn.sendCommand(tokens);
+        conn.recvBatch(Path.of(tokens[1]).getFileName().toString());
+    }
+
+    // PACK <glob> <path>: matching files under path arrive as one packed stream, unpacked on the fly.
+    private void cmd_PACK(String[] tokens) {
+        if (tokens.length != 3) {
+            System.out.println("syntax error");
+            return;
+        }
+
+        conn.sendCommand(tokens);
+        conn.recvBatch(Path.of(tokens[2]).getFileName().toString(), true);
+    }
+
+    private void cmd_MPUT(String[] tokens) throws IOException {
+        if (tokens.length != 2) {
+            System.out.println("syntax error");
+            return;
+        }
+
+        File root = new File(tokens[1]);
+        if (!root.isDirectory()) {
+            System.out.println("directory not exists");
+            return;
+        }
+
+        Batch.Manifest manifest = Batch.Manifest.of(root);
+        System.out.println(manifest.getEntries().size() + " files, " + manifest.getTotalSize() + " bytes queued");
+
+        conn.sendCommand(tokens);
+
+        try (Batch.FileQueueInputStream inp = new Batch.FileQueueInputStream(manifest)) {
+            conn.sendData(inp, root.getName(), manifest.getStreamLength());
+        }
+    }
+
+    private void cmd_DPUT(String[] tokens) throws IOException {
+        if (tokens.length != 2) {
+            System.out.println("syntax error");
+            return;
+        }
+
+        File file = new File(tokens[1]);
+        if (!file.isFile()) {
+            System.out.println("file not exists");
+            return;
+        }
+
+        conn.sendCommand(tokens);
+
+        Control.Message reply = conn.recvReply();
+        if (!reply.isSuccess()) {
+            Connection.printReply(reply);
+            return;
+        }
+
+        // "Comprising <count> blocks of <block size> bytes"
+        final int blockCnt, blockSize;
+        if (conn.isBinary()) {
+            blockCnt = (int) reply.getLong(0);
+            blockSize = (int) reply.getLong(1);
+        } else {
+            String[] words = reply.getString(0).split(" ");
+            blockCnt = Integer.parseInt(words[1]);
+            blockSize = Integer.parseInt(words[4]);
+        }
+
+        Delta.Signature signature = new Delta.Signature(blockSize);
+        for (int i = 0; i < blockCnt; ++i) {
+            String[] values = conn.recvControlMessage().split(",");
+
+            signature.add(Integer.parseInt(values[0]), values[1]);
+        }
+
+        File delta = File.createTempFile("ftp", ".delta");
+        try {
+            Delta.Encoder encoder;
+            try (InputStream inp = new BufferedInputStream(new FileInputStream(file));
+                 OutputStream oup = new BufferedOutputStream(new FileOutputStream(delta))) {
+                encoder = new Delta.Encoder(signature, oup);
+                encoder.encode(inp);
+            }
+
+            System.out.println("Delta of " + file.getName() + ": " + encoder.getLiteralBytes() + " literal bytes, "
+                    + encoder.getCopiedBytes() + " bytes reused");
+
+            try (FileInputStream inp = new FileInputStream(delta)) {
+                conn.sendData(inp, file.getName(), delta.length());
+            }
+        } finally {
+            delta.delete();
+        }
+    }
+
+    private void cmd_MODE(String[] tokens) throws IOException {
+        Control.Message reply = conn.recvReply();
+        Connection.printReply(reply);
+
+        if (reply.isSuccess()) {
+            conn.setCompression(tokens[1].equalsIgnoreCase("Z"));
+        }
+    }
+
     private void cmd_DROP(String[] tokens) {
         if (tokens.length != 2) {
             System.out.println("syntax error");
@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Content-addressed store of downloaded files: every file is kept under its SHA-256 digest.
+class LocalCache {
+    public static final String ALGORITHM = "SHA-256";
+
+    private Path dir;
+
+    public LocalCache(String dir) {
+        this.dir = Path.of(dir);
+    }
+
+    public boolean restore(String digest, String name) {
+        Path cached = dir.resolve(digest);
+
+        if (!Files.isRegularFile(cached)) {
+            return false;
+        }
+
+        try {
+            Files.copy(cached, Path.of(name), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // the downloaded file is only kept if it really has the digest the server announced.
+    public boolean store(String digest, String name) {
+        try {
+            if (!digest.equals(compute(new File(name)))) {
+                return false;
+            }
+
+            Files.createDirectories(dir);
+
+            // a copy rather than a link, so later edits of the local file cannot poison the cache.
+            Files.copy(Path.of(name), dir.resolve(digest), StandardCopyOption.REPLACE_EXISTING);
+
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static String compute(File file) throws IOException {
+        try (InputStream inp = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+
+            byte[] buf = new byte[64 * 1024];
+            int read;
+            while ((read = inp.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for (byte v : digest.digest()) {
+                builder.append(String.format("%02x", v & 0xFF));
+            }
+
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
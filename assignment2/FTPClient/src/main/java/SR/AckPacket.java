@@ -1,7 +1,20 @@
 package SR;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
 public class AckPacket {
-    public static final int length = Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE;
+    private static final int SEQ_NO_OFFSET = Consts.TYPE_SIZE;
+    private static final int TRANSFER_ID_OFFSET = SEQ_NO_OFFSET + Consts.SEQ_NO_SIZE;
+    private static final int RECV_WINDOW_OFFSET = TRANSFER_ID_OFFSET + Consts.TRANSFER_ID_SIZE;
+    private static final int CHK_SUM_OFFSET = RECV_WINDOW_OFFSET + Consts.RECV_WINDOW_SIZE;
+
+    // sequence number of a pure window update, which acknowledges no frame
+    public static final int WINDOW_UPDATE = 0;
+
+    public static final int length = CHK_SUM_OFFSET + Consts.CHK_SUM_SIZE;
 
     private byte[] chunk = new byte[length];
 
@@ -10,18 +23,80 @@ public class AckPacket {
     }
 
     public AckPacket(int seqNo, int CHKsum) {
-        chunk[0] = (byte)(seqNo);
+        this(seqNo, 0, CHKsum);
+    }
+
+    public AckPacket(int seqNo, int transferId, int CHKsum) {
+        this(seqNo, transferId, Consts.WINDOW_SIZE, CHKsum);
+    }
+
+    // recvWindow: chunks the receiver can still take in from its next expected one.
+    public AckPacket(int seqNo, int transferId, int recvWindow, int CHKsum) {
+        this(Consts.TYPE_ACK, seqNo, transferId, recvWindow, CHKsum);
+    }
+
+    // type: Consts.TYPE_ACK, or Consts.TYPE_NAK for a frame that arrived corrupted or is missing.
+    public AckPacket(int type, int seqNo, int transferId, int recvWindow, int CHKsum) {
+        chunk[0] = (byte)type;
+
+        chunk[SEQ_NO_OFFSET + 0] = (byte)((seqNo >> 8) & 0xFF);
+        chunk[SEQ_NO_OFFSET + 1] = (byte)(seqNo & 0xFF);
+        chunk[TRANSFER_ID_OFFSET] = (byte)(transferId & 0xFF);
+
+        chunk[RECV_WINDOW_OFFSET + 0] = (byte)((recvWindow >> 8) & 0xFF);
+        chunk[RECV_WINDOW_OFFSET + 1] = (byte)(recvWindow & 0xFF);
+
+        chunk[CHK_SUM_OFFSET + 0] = (byte)((CHKsum >> 8) & 0xFF);
+        chunk[CHK_SUM_OFFSET + 1] = (byte)(CHKsum & 0xFF);
+    }
+
+    // reads the next ack, skipping data frames left over from earlier transfers on the same channel.
+    public static AckPacket read(InputStream inStream) throws IOException {
+        DataInputStream in = new DataInputStream(inStream);
+
+        while (true) {
+            int type;
+            try {
+                type = in.readUnsignedByte();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            if (type == Consts.TYPE_DATA) {
+                Packet.readBody(in);
+                continue;
+            }
+
+            if (type != Consts.TYPE_ACK && type != Consts.TYPE_NAK) {
+                throw new IOException("unknown frame type " + type);
+            }
+
+            byte[] chunk = new byte[length];
+            chunk[0] = (byte)type;
+            in.readFully(chunk, Consts.TYPE_SIZE, length - Consts.TYPE_SIZE);
 
-        chunk[Consts.SEQ_NO_SIZE + 0] = (byte)((CHKsum >> 8) & 0xFF);
-        chunk[Consts.SEQ_NO_SIZE + 1] = (byte)(CHKsum & 0xFF);
+            return new AckPacket(chunk);
+        }
+    }
+
+    public boolean isNak() {
+        return chunk[0] == Consts.TYPE_NAK;
     }
 
     public int getSequenceNumber() {
-        return chunk[0];
+        return ((chunk[SEQ_NO_OFFSET + 0] & 0xFF) << 8) | (chunk[SEQ_NO_OFFSET + 1] & 0xFF);
+    }
+
+    public int getTransferId() {
+        return chunk[TRANSFER_ID_OFFSET] & 0xFF;
+    }
+
+    public int getRecvWindow() {
+        return ((chunk[RECV_WINDOW_OFFSET + 0] & 0xFF) << 8) | (chunk[RECV_WINDOW_OFFSET + 1] & 0xFF);
     }
 
     public int getCheckSum() {
-        return ((chunk[Consts.SEQ_NO_SIZE + 0] & 0xFF) << 8) | (chunk[Consts.SEQ_NO_SIZE + 1] & 0xFF);
+        return ((chunk[CHK_SUM_OFFSET + 0] & 0xFF) << 8) | (chunk[CHK_SUM_OFFSET + 1] & 0xFF);
     }
 
     public byte[] get() {
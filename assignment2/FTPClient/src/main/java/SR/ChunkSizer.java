@@ -0,0 +1,38 @@
+package SR;
+
+// Chunk size of a connection's transfers, adjusted after every transfer from its retransmission
+// rate and throughput. A clean link doubles the size, so fewer frames carry the same bytes, until
+// throughput stops improving; a lossy one halves it, so every loss costs a smaller resend.
+public class ChunkSizer {
+    // transfers of fewer frames say too little about the link
+    private static final long MIN_SAMPLE_FRAMES = 16;
+    private static final double LOW_LOSS = 0.01;
+    private static final double HIGH_LOSS = 0.05;
+    // growing is undone if throughput drops below this share of the last transfer's
+    private static final double MIN_GAIN = 0.9;
+
+    private int chunkSize = Consts.CHUNK_SIZE;
+    private double lastThroughput = 0;
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    // frames: chunks of the transfer; sends: every frame sent, retransmissions included.
+    public synchronized void record(long bytes, long nanos, long frames, long sends) {
+        if (frames < MIN_SAMPLE_FRAMES || nanos <= 0) {
+            return;
+        }
+
+        final double loss = (double) (sends - frames) / sends;
+        final double throughput = bytes * 1e9 / nanos;
+
+        if (loss > HIGH_LOSS || (loss < LOW_LOSS && throughput < lastThroughput * MIN_GAIN)) {
+            chunkSize = Math.max(Consts.CHUNK_SIZE, chunkSize / 2);
+        } else if (loss < LOW_LOSS) {
+            chunkSize = Math.min(Consts.MAX_CHUNK_SIZE, chunkSize * 2);
+        }
+
+        lastThroughput = throughput;
+    }
+}
@@ -3,10 +3,30 @@ package SR;
 public class Consts {
     public static final int WINDOW_SIZE = 5;
 
-    public static final int SEQ_NO_SIZE = 1;
+    public static final int TYPE_SIZE = 1;
+    public static final int SEQ_NO_SIZE = 2;
+    public static final int TRANSFER_ID_SIZE = 1;
+    public static final int FLAG_SIZE = 1;
     public static final int CHK_SUM_SIZE = 2;
     public static final int SIZE_SIZE = 2;
+    public static final int CHUNK_SIZE_SIZE = 2;
+    public static final int RECV_WINDOW_SIZE = 2;
+
+    // default chunk size, and the largest one a transfer may pick; a parity frame's
+    // header on top of the largest chunk still fits in the size field.
     public static final int CHUNK_SIZE = 1000;
+    public static final int MAX_CHUNK_SIZE = 63 * 1024;
+
+    // chunks a Receiver buffers ahead of its writer; the free part is advertised in every ack.
+    public static final int RECV_BUFFER_SIZE = 64;
+
+    // far more than twice the window: a duplicate delayed on the path, or by a retransmission racing
+    // its original, would otherwise come back under the number of a later chunk.
+    public static final int SEQ_NO_INTERVAL = 65535;
 
-    public static final int SEQ_NO_INTERVAL = 15;;
+    // frame types, so data and acks of any transfer can share one persistent channel.
+    public static final int TYPE_DATA = 1;
+    public static final int TYPE_ACK = 2;
+    // same layout as an ack; asks for one frame to be sent again right away
+    public static final int TYPE_NAK = 3;
 }
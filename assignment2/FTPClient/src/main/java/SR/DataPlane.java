@@ -0,0 +1,80 @@
+package SR;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Threads shared by every transfer in this process. A few workers run the send passes of all
+// Senders as acks, timeouts and frames arrive, and one scheduler fires frame timeouts and deferred
+// passes. Passes never block, so the workers are never held up by a transfer.
+// What may block on something outside the transfer (socket writes, see FrameWriter, and a Receiver's
+// output) is an I/O task instead: it gets a thread of its own from an unbounded pool while it runs, so
+// a slow peer, disk or subscriber holds up its own transfer only. Idle I/O threads are reused.
+// Reading is not shared. The thread that calls send or recv blocks reading the acks or frames of its
+// transfer until it is over, so every running transfer still holds one thread, its caller's, on top of
+// its I/O tasks while they run. Sharing the reads as well would take non-blocking channels and a
+// selector under DataChannel, whose TLS streams block.
+// With virtual threads (see Threads) every requested task gets a virtual thread of its own, and the
+// blocked callers are virtual threads too, which is what keeps many transfers cheap.
+public class DataPlane {
+    public static final String THREADS_PROPERTY = "ftp.dataplane.threads";
+
+    private static final ExecutorService workers = Threads.newExecutor("sr-worker",
+            Integer.getInteger(THREADS_PROPERTY, Math.max(4, Runtime.getRuntime().availableProcessors())));
+
+    private static final ExecutorService io = Threads.newCachedExecutor("sr-io");
+
+    private static final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(Threads.daemon("sr-timer"));
+
+    // A task run on the workers whenever it is requested, never twice at once. A request made
+    // while it runs makes it run once more, so no event is missed between a check and the return.
+    public static class Task {
+        private Runnable body;
+        private ExecutorService executor;
+        private AtomicInteger requests = new AtomicInteger();
+
+        public Task(Runnable body) {
+            this(body, false);
+        }
+
+        // blocking: the body may block, so it runs as an I/O task rather than on the workers.
+        public Task(Runnable body, boolean blocking) {
+            this.body = body;
+            this.executor = blocking ? io : workers;
+        }
+
+        public void request() {
+            if (requests.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        public ScheduledFuture<?> requestLater(long delayNanos) {
+            return timers.schedule(this::request, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void drain() {
+            int handled = requests.get();
+
+            while (true) {
+                try {
+                    body.run();
+                } catch (RuntimeException e) {
+                    System.err.println("<EXCEPTION> data plane task failed: " + e);
+                }
+
+                handled = requests.addAndGet(-handled);
+                if (handled == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable action, long delayMillis) {
+        return timers.schedule(action, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
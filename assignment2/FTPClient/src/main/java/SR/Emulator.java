@@ -0,0 +1,255 @@
+package SR;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A Link that impairs frames like a WAN path would, driven by a seeded Random so runs can be repeated:
+// loss (uniform or Gilbert-Elliott bursts), bit errors, latency with jitter, reordering, duplication
+// and a bandwidth cap. The scripted DROP/TIMEOUT/BITERROR frame indices are applied here as well.
+// Held-back frames are timed by one shared scheduler thread, not a thread per frame. It only hands them
+// to the channel's FrameWriter when they are due and never writes itself, so a peer that stops reading
+// holds up its own channel and the other emulated sessions keep the timing of their profiles.
+public class Emulator implements Link {
+    // A scripted TIMEOUT frame arrives this late, well after the sender gave up on it.
+    private static final long TIMEOUT_DELAY = Sender.TIME_OUT * 2L;
+    // A reordered frame is held at least this long on top of its delay, so later frames overtake it.
+    private static final long REORDER_DELAY = 10;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemon("emulator"));
+
+    // Impairments of one direction. Probabilities are per frame, times in milliseconds,
+    // the rate in bytes per second (0 = uncapped).
+    public static class Profile {
+        public double loss = 0;
+        // Gilbert-Elliott: chance to turn bad per frame, chance to recover per frame, loss while bad
+        public double burstEnter = 0;
+        public double burstExit = 1;
+        public double burstLoss = 0;
+        public double corrupt = 0;
+        public long delay = 0;
+        public long jitter = 0;
+        public double reorder = 0;
+        public double duplicate = 0;
+        public long rate = 0;
+        public long seed = 0;
+
+        // "loss=0.01", "ge=0.005,0.3,0.8", "corrupt=0.001", "delay=40", "jitter=5", "reorder=0.02", "dup=0.01",
+        // "rate=500000", "seed=7", one option each
+        public static Profile parse(String... options) {
+            Profile profile = new Profile();
+
+            for (String option : options) {
+                String[] kv = option.split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("expected key=value: " + option);
+                }
+
+                switch (kv[0].toLowerCase()) {
+                    case "loss":
+                        profile.loss = probability(kv[1]);
+                        break;
+
+                    case "ge": {
+                        String[] args = kv[1].split(",");
+                        if (args.length != 3) {
+                            throw new IllegalArgumentException("ge needs enter,exit,loss: " + kv[1]);
+                        }
+
+                        profile.burstEnter = probability(args[0]);
+                        profile.burstExit = probability(args[1]);
+                        profile.burstLoss = probability(args[2]);
+                        break;
+                    }
+
+                    case "corrupt":
+                        profile.corrupt = probability(kv[1]);
+                        break;
+
+                    case "delay":
+                        profile.delay = Long.parseLong(kv[1]);
+                        break;
+
+                    case "jitter":
+                        profile.jitter = Long.parseLong(kv[1]);
+                        break;
+
+                    case "reorder":
+                        profile.reorder = probability(kv[1]);
+                        break;
+
+                    case "dup":
+                        profile.duplicate = probability(kv[1]);
+                        break;
+
+                    case "rate":
+                        profile.rate = Long.parseLong(kv[1]);
+                        break;
+
+                    case "seed":
+                        profile.seed = Long.parseLong(kv[1]);
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("unknown impairment " + kv[0]);
+                }
+            }
+
+            if (profile.delay < 0 || profile.jitter < 0 || profile.rate < 0) {
+                throw new IllegalArgumentException("negative time or rate");
+            }
+
+            return profile;
+        }
+
+        private static double probability(String value) {
+            final double p = Double.parseDouble(value);
+            if (p < 0 || p > 1) {
+                throw new IllegalArgumentException("probability out of range: " + value);
+            }
+
+            return p;
+        }
+
+        public String toString() {
+            return "loss=" + loss + " ge=" + burstEnter + "," + burstExit + "," + burstLoss + " corrupt=" + corrupt
+                    + " delay=" + delay + " jitter=" + jitter + " reorder=" + reorder + " dup=" + duplicate
+                    + " rate=" + rate + " seed=" + seed;
+        }
+    }
+
+    private Profile profile;
+    private List<Long> drop, timeout, biterr;
+
+    private Random random;
+    private boolean bad = false;
+    // when the capped link finishes sending what it was given, and when the last in-order frame leaves
+    private long linkFree = 0;
+    private long lastDeparture = 0;
+
+    private volatile boolean closed = false;
+
+    // a lock rather than the monitor, which would pin a virtual thread
+    private ReentrantLock lock = new ReentrantLock();
+    private FrameWriter writer;
+
+    // profile may be null for the scripted impairments only.
+    public Emulator(FrameWriter writer, Profile profile, List<Long> drop, List<Long> timeout, List<Long> biterr) {
+        this.profile = profile;
+        this.writer = writer;
+
+        this.drop = drop;
+        this.timeout = timeout;
+        this.biterr = biterr;
+
+        random = new Random(profile == null ? 0 : profile.seed);
+    }
+
+    @Override
+    public void write(Packet packet, long index) throws IOException {
+        // scripted impairments hit a frame once, so its retransmission gets through.
+        int scripted;
+        if ((scripted = drop.indexOf(index)) != -1) {
+            drop.set(scripted, -1L);
+            return;
+        }
+
+        if ((scripted = timeout.indexOf(index)) != -1) {
+            timeout.set(scripted, -1L);
+            schedule(packet.get(), TIMEOUT_DELAY * 1_000_000L);
+            return;
+        }
+
+        if ((scripted = biterr.indexOf(index)) != -1) {
+            biterr.set(scripted, -1L);
+            packet = packet.BitErrorPkt();
+        }
+
+        if (profile == null) {
+            send(packet.get());
+            return;
+        }
+
+        impair(packet);
+    }
+
+    private void impair(Packet packet) throws IOException {
+        lock.lock();
+        try {
+            impairLocked(packet);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void impairLocked(Packet packet) throws IOException {
+        final long now = System.nanoTime();
+        final byte[] frame = packet.get();
+
+        // the frame occupies the capped link whether or not it survives it
+        long departure = now;
+        if (profile.rate > 0) {
+            linkFree = Math.max(linkFree, now) + frame.length * 1_000_000_000L / profile.rate;
+            departure = linkFree;
+        }
+
+        bad = bad ? random.nextDouble() >= profile.burstExit : random.nextDouble() < profile.burstEnter;
+        if (random.nextDouble() < (bad ? profile.burstLoss : profile.loss)) {
+            return;
+        }
+
+        byte[] wire = (random.nextDouble() < profile.corrupt) ? packet.BitErrorPkt().get() : frame;
+
+        long latency = profile.delay * 1_000_000L;
+        if (profile.jitter > 0) {
+            latency += (long) (random.nextGaussian() * profile.jitter * 1_000_000L);
+        }
+
+        long arrival = Math.max(now, departure + latency);
+        if (random.nextDouble() < profile.reorder) {
+            arrival += Math.max(profile.delay, REORDER_DELAY) * 1_000_000L;
+        } else {
+            // jitter alone does not reorder, like a queue on the path
+            arrival = Math.max(arrival, lastDeparture);
+            lastDeparture = arrival;
+        }
+
+        schedule(wire, arrival - now);
+
+        if (random.nextDouble() < profile.duplicate) {
+            schedule(wire, arrival - now);
+        }
+    }
+
+    private void schedule(byte[] frame, long delayNanos) throws IOException {
+        if (delayNanos <= 0 && lastDeparture <= System.nanoTime()) {
+            send(frame);
+            return;
+        }
+
+        // the write is queued, so no frame of any channel waits on this one's socket.
+        scheduler.schedule(() -> {
+            try {
+                // the channel outlives this transfer, so a finished one must stay quiet.
+                if (!closed) {
+                    send(frame);
+                }
+            } catch (IOException e) {
+                // the Sender notices a dead channel through its acks
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void send(byte[] frame) throws IOException {
+        writer.write(frame);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,110 @@
+package SR;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The writes of one channel, owned by its DataChannel: data frames, acks, and frames an Emulator held
+// back. They are queued whole and written in order by an I/O task of the channel's own (see DataPlane),
+// so frames never interleave and a peer that stops reading, or a full socket buffer, holds up this
+// channel only, never the workers that run every other transfer's passes. Passes and the ack reader
+// only queue and go on.
+// The window keeps the queue short; a backlog past MAX_BACKLOG drops new data frames, as a full queue
+// on the path would, and the retransmission resends them. Acks, NAKs and window updates are never
+// dropped: nothing resends them, and a lost window update would leave the sender at a closed window
+// for good. They come at most a few per data frame received, so they cannot pile up on their own.
+// A failed write, or closing the channel, fails every later one.
+public class FrameWriter {
+    private static final long MAX_BACKLOG = 4L * 1024 * 1024;
+
+    private OutputStream out;
+    private DataPlane.Task task = new DataPlane.Task(this::drain, true);
+
+    private ReentrantLock lock = new ReentrantLock();
+    private ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+    private long backlog = 0;
+    private IOException failure;
+
+    FrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    // queues a data frame, which must not change afterwards; throws if an earlier write failed.
+    public void write(byte[] frame) throws IOException {
+        queue(frame, true);
+    }
+
+    // queues an ack, a NAK or a window update, however long the backlog.
+    public void writeControl(byte[] frame) throws IOException {
+        queue(frame, false);
+    }
+
+    private void queue(byte[] frame, boolean droppable) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (droppable && backlog + frame.length > MAX_BACKLOG && !queue.isEmpty()) {
+                return;
+            }
+
+            queue.add(frame);
+            backlog += frame.length;
+        } finally {
+            lock.unlock();
+        }
+
+        task.request();
+    }
+
+    // the channel is closed: what is queued is dropped, and later writes fail.
+    void close() {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = new IOException("data channel closed");
+            }
+
+            queue.clear();
+            backlog = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            byte[] frame;
+
+            lock.lock();
+            try {
+                frame = queue.poll();
+                if (frame == null) {
+                    return;
+                }
+
+                backlog -= frame.length;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                out.write(frame);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    queue.clear();
+                    backlog = 0;
+                } finally {
+                    lock.unlock();
+                }
+
+                return;
+            }
+        }
+    }
+}
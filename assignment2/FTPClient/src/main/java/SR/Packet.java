@@ -1,49 +1,141 @@
 package SR;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
 public class Packet {
-    public static final int length = Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE + Consts.SIZE_SIZE + Consts.CHUNK_SIZE;
+    private static final int SEQ_NO_OFFSET = Consts.TYPE_SIZE;
+    private static final int TRANSFER_ID_OFFSET = SEQ_NO_OFFSET + Consts.SEQ_NO_SIZE;
+    private static final int FLAG_OFFSET = TRANSFER_ID_OFFSET + Consts.TRANSFER_ID_SIZE;
+    private static final int CHK_SUM_OFFSET = FLAG_OFFSET + Consts.FLAG_SIZE;
+    private static final int CHUNK_SIZE_OFFSET = CHK_SUM_OFFSET + Consts.CHK_SUM_SIZE;
+    private static final int SIZE_OFFSET = CHUNK_SIZE_OFFSET + Consts.CHUNK_SIZE_SIZE;
+
+    public static final int HEADER_LENGTH = SIZE_OFFSET + Consts.SIZE_SIZE;
+    public static final int length = HEADER_LENGTH + Consts.MAX_CHUNK_SIZE;
 
-    private byte[] chunk = new byte[length];
+    public static final int FLAG_COMPRESSED = 0x01;
+
+    private byte[] chunk;
 
     public Packet(byte[] chunk) {
-        System.arraycopy(chunk, 0, this.chunk, 0, length);
+        this.chunk = new byte[chunk.length];
+        System.arraycopy(chunk, 0, this.chunk, 0, chunk.length);
     }
 
     public Packet(int seqNo, int CHKsum, int length, byte[] data) {
-        chunk[0] = (byte)(seqNo & 0xFF);
+        this(seqNo, 0, 0, CHKsum, length, data);
+    }
+
+    public Packet(int seqNo, int transferId, int flags, int CHKsum, int length, byte[] data) {
+        this(seqNo, transferId, flags, CHKsum, Consts.CHUNK_SIZE, length, data);
+    }
+
+    // chunkSize: the raw chunk size of the whole transfer, so the receiver can tell how many chunks to expect.
+    public Packet(int seqNo, int transferId, int flags, int CHKsum, int chunkSize, int length, byte[] data) {
+        // only the real payload goes on the wire, so short (or compressed) chunks make short frames.
+        chunk = new byte[HEADER_LENGTH + length];
+
+        chunk[0] = (byte)Consts.TYPE_DATA;
 
-        chunk[Consts.SEQ_NO_SIZE + 0] = (byte)((CHKsum >> 8) & 0xFF);
-        chunk[Consts.SEQ_NO_SIZE + 1] = (byte)(CHKsum & 0xFF);
+        chunk[SEQ_NO_OFFSET + 0] = (byte)((seqNo >> 8) & 0xFF);
+        chunk[SEQ_NO_OFFSET + 1] = (byte)(seqNo & 0xFF);
+        chunk[TRANSFER_ID_OFFSET] = (byte)(transferId & 0xFF);
+        chunk[FLAG_OFFSET] = (byte)(flags & 0xFF);
 
-        chunk[Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE + 0] = (byte)((length >> 8) & 0xFF);
-        chunk[Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE + 1] = (byte)(length & 0xFF);
+        chunk[CHK_SUM_OFFSET + 0] = (byte)((CHKsum >> 8) & 0xFF);
+        chunk[CHK_SUM_OFFSET + 1] = (byte)(CHKsum & 0xFF);
 
-        System.arraycopy(data, 0, chunk, Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE + Consts.SIZE_SIZE, data.length);
+        chunk[CHUNK_SIZE_OFFSET + 0] = (byte)((chunkSize >> 8) & 0xFF);
+        chunk[CHUNK_SIZE_OFFSET + 1] = (byte)(chunkSize & 0xFF);
+
+        chunk[SIZE_OFFSET + 0] = (byte)((length >> 8) & 0xFF);
+        chunk[SIZE_OFFSET + 1] = (byte)(length & 0xFF);
+
+        System.arraycopy(data, 0, chunk, HEADER_LENGTH, length);
+    }
+
+    // reads the next data frame, skipping acks left over from earlier transfers on the same channel.
+    public static Packet read(InputStream inStream) throws IOException {
+        DataInputStream in = new DataInputStream(inStream);
+
+        while (true) {
+            int type;
+            try {
+                type = in.readUnsignedByte();
+            } catch (EOFException e) {
+                return null;
+            }
+
+            if (type == Consts.TYPE_ACK || type == Consts.TYPE_NAK) {
+                in.skipNBytes(AckPacket.length - Consts.TYPE_SIZE);
+                continue;
+            }
+
+            if (type != Consts.TYPE_DATA) {
+                throw new IOException("unknown frame type " + type);
+            }
+
+            return readBody(in);
+        }
+    }
+
+    // reads the rest of a data frame whose type byte was already consumed.
+    static Packet readBody(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = (byte)Consts.TYPE_DATA;
+        in.readFully(header, Consts.TYPE_SIZE, HEADER_LENGTH - Consts.TYPE_SIZE);
+
+        final int size = ((header[SIZE_OFFSET] & 0xFF) << 8) | (header[SIZE_OFFSET + 1] & 0xFF);
+
+        byte[] chunk = new byte[HEADER_LENGTH + size];
+        System.arraycopy(header, 0, chunk, 0, HEADER_LENGTH);
+        in.readFully(chunk, HEADER_LENGTH, size);
+
+        return new Packet(chunk);
     }
 
     public Packet BitErrorPkt() {
         Packet newOne = new Packet(chunk);
 
-        newOne.chunk[Consts.SEQ_NO_SIZE + 0] = (byte)0xFF;
-        newOne.chunk[Consts.SEQ_NO_SIZE + 1] = (byte)0xFF;
+        newOne.chunk[CHK_SUM_OFFSET + 0] = (byte)0xFF;
+        newOne.chunk[CHK_SUM_OFFSET + 1] = (byte)0xFF;
 
         return newOne;
     }
 
     public int getSequenceNumber() {
-        return chunk[0];
+        return ((chunk[SEQ_NO_OFFSET + 0] & 0xFF) << 8) | (chunk[SEQ_NO_OFFSET + 1] & 0xFF);
+    }
+
+    public int getTransferId() {
+        return chunk[TRANSFER_ID_OFFSET] & 0xFF;
+    }
+
+    public int getFlags() {
+        return chunk[FLAG_OFFSET] & 0xFF;
+    }
+
+    public boolean isCompressed() {
+        return (getFlags() & FLAG_COMPRESSED) != 0;
     }
 
     public int getCheckSum() {
-        return ((chunk[Consts.SEQ_NO_SIZE + 0] & 0xFF) << 8) | (chunk[Consts.SEQ_NO_SIZE + 1] & 0xFF);
+        return ((chunk[CHK_SUM_OFFSET + 0] & 0xFF) << 8) | (chunk[CHK_SUM_OFFSET + 1] & 0xFF);
+    }
+
+    public int getChunkSize() {
+        return ((chunk[CHUNK_SIZE_OFFSET + 0] & 0xFF) << 8) | (chunk[CHUNK_SIZE_OFFSET + 1] & 0xFF);
     }
 
     public int getLength() {
-        return ((chunk[Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE + 0] & 0xFF) << 8) | (chunk[Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE + 1] & 0xFF);
+        return ((chunk[SIZE_OFFSET + 0] & 0xFF) << 8) | (chunk[SIZE_OFFSET + 1] & 0xFF);
     }
 
     public void getData(byte[] value) {
-        System.arraycopy(chunk, Consts.SEQ_NO_SIZE + Consts.CHK_SUM_SIZE + Consts.SIZE_SIZE, value, 0, getLength());
+        System.arraycopy(chunk, HEADER_LENGTH, value, 0, getLength());
     }
 
     public byte[] get() {
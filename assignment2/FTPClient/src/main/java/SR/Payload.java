@@ -0,0 +1,34 @@
+package SR;
+
+// One chunk of a transfer as it goes into a Packet, already encoded if the transfer is compressed.
+// Instances are shared between transfers, so data must never be modified.
+public class Payload {
+    private byte[] data;
+    private boolean compressed;
+
+    public Payload(byte[] data, boolean compressed) {
+        this.data = data;
+        this.compressed = compressed;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return data.length;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    // chunks of CHUNK_SIZE bytes a transfer of length bytes is split into, the last one possibly shorter.
+    public static long chunkCount(long length) {
+        return chunkCount(length, Consts.CHUNK_SIZE);
+    }
+
+    public static long chunkCount(long length, int chunkSize) {
+        return length / chunkSize + (length % chunkSize > 0 ? 1 : 0);
+    }
+}
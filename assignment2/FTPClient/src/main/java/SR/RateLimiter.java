@@ -0,0 +1,7 @@
+package SR;
+
+// Paces a Sender: called with the size of every data frame as it goes out, including retransmissions.
+public interface RateLimiter {
+    // takes the bytes and returns how many nanoseconds the sender should hold its next frame back.
+    long reserve(int bytes);
+}
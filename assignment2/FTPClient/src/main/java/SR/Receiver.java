@@ -1,54 +1,443 @@
 package SR;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Receiver {
+    // A frame missing before one that arrived may only be late: the Emulator reorders and jitters frames,
+    // and probes and fast retransmits go out of order. A gap is asked for once this many first arrivals
+    // came past it, as the sender's fast retransmit waits for as many later acks.
+    private static final int REORDER_FRAMES = 3;
+
+    // Hands in-order chunks to the output on a DataPlane I/O task, so a slow disk fills the buffer
+    // (and shrinks the advertised window) instead of stalling the socket reads or other transfers.
+    // Every run drains what the reader has buffered so far; the reader requests one per chunk.
+    // For a Flow receive it is the subscription as well: it only takes a chunk the subscriber has
+    // asked for, and every signal the subscriber gets comes from a run, one at a time.
+    private class WriteHandler implements Runnable, Flow.Subscription {
+        private OutputStream data;
+        private long length;
+        private long written = 0;
+        private byte[] decoded;
+
+        // the output may block (a disk, a subscriber), so it has an I/O task of its own
+        private DataPlane.Task task = new DataPlane.Task(this, true);
+
+        private Flow.Subscriber<? super ByteBuffer> subscriber;
+        private AtomicLong requested = new AtomicLong();
+        private volatile boolean cancelled = false;
+        private volatile Throwable error;
+        private boolean terminated = false;
+        private boolean released = false;
+
+        // completed once everything is written, the writing failed, or the transfer was given up
+        private CompletableFuture<Void> finished = new CompletableFuture<Void>();
+
+        public WriteHandler(OutputStream data, long length) {
+            this.data = data;
+            this.length = length;
+
+            if (length == 0) {
+                finished.complete(null);
+            }
+        }
+
+        public WriteHandler(Flow.Subscriber<? super ByteBuffer> subscriber, long length) {
+            this((OutputStream) null, length);
+
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void run() {
+            if (decoded == null) {
+                // the chunk size is only known from the first frame, so make room for the largest one.
+                decoded = new byte[Consts.MAX_CHUNK_SIZE];
+            }
+
+            try {
+                Packet pkt;
+                while (!finished.isDone() && hasDemand() && (pkt = buffer.poll()) != null) {
+
+                    final int len = pkt.getLength();
+                    byte[] dataToWrite = new byte[len];
+                    pkt.getData(dataToWrite);
+
+                    if (pkt.isCompressed()) {
+                        final int decodedSize = codec.decode(dataToWrite, len, decoded);
+                        if (subscriber != null) {
+                            // decoded is reused, and the subscriber may keep what it is handed
+                            next(ByteBuffer.wrap(Arrays.copyOf(decoded, decodedSize)));
+                        } else {
+                            data.write(decoded, 0, decodedSize);
+                        }
+                        written += decodedSize;
+                    } else {
+                        if (subscriber != null) {
+                            next(ByteBuffer.wrap(dataToWrite));
+                        } else {
+                            data.write(dataToWrite);
+                        }
+                        written += len;
+                    }
+
+                    // the sender may be held back by what we advertised last; tell it about the room made.
+                    if (advertised < Consts.WINDOW_SIZE) {
+                        sendAck(AckPacket.WINDOW_UPDATE);
+                    }
+
+                    if (written >= length) {
+                        // signalled before recv returns
+                        terminate(null);
+                        finished.complete(null);
+                    }
+                }
+
+                if (cancelled && !released) {
+                    // nothing will take the buffered chunks; free the room so the reader gets to see the cancel.
+                    released = true;
+                    buffer.clear();
+                    sendAck(AckPacket.WINDOW_UPDATE);
+                }
+            } catch (IOException e) {
+                failure = e;
+                finished.complete(null);
+            }
+
+            if (error != null) {
+                terminate(error);
+            }
+        }
+
+        private boolean hasDemand() {
+            return subscriber == null || requested.get() > 0;
+        }
+
+        private void next(ByteBuffer chunk) {
+            if (cancelled) {
+                return;
+            }
+
+            try {
+                subscriber.onNext(chunk);
+            } catch (RuntimeException e) {
+                // a subscriber that throws is taken to have cancelled
+                cancel();
+                return;
+            }
+
+            // Long.MAX_VALUE stands for no limit
+            requested.getAndUpdate(n -> (n == Long.MAX_VALUE) ? n : n - 1);
+        }
+
+        // onComplete if e is null, onError otherwise; at most one of them, and none after a cancel.
+        // Nothing for a receive into an OutputStream.
+        public void terminate(Throwable e) {
+            if (subscriber == null || terminated || cancelled) {
+                return;
+            }
+
+            terminated = true;
+
+            if (e == null) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError(e);
+            }
+        }
+
+        // the receive failed; the subscriber hears of it from the next run.
+        public void fail(Throwable e) {
+            if (error == null) {
+                error = e;
+            }
+
+            task.request();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("non-positive request " + n));
+                abort(new IOException("subscriber made a non-positive request"));
+                return;
+            }
+
+            requested.getAndUpdate(r -> (r + n < 0) ? Long.MAX_VALUE : r + n);
+            task.request();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            abort(new IOException("transfer cancelled by its subscriber"));
+        }
+
+        private void abort(IOException reason) {
+            if (failure == null) {
+                failure = reason;
+            }
+
+            finished.complete(null);
+            task.request();
+        }
+
+        public void wake() {
+            task.request();
+        }
+
+        public void await() throws InterruptedException {
+            try {
+                finished.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        public void stop() {
+            finished.complete(null);
+        }
+    }
+
     private InputStream inStream;
-    private OutputStream outStream;
+    private FrameWriter frames;
+    // keeps the windows advertised in the order the acks are queued
+    private ReentrantLock ackLock = new ReentrantLock();
+
+    private int transferId;
+    private Codec codec;
+
+    private BlockingQueue<Packet> buffer = new ArrayBlockingQueue<Packet>(Consts.RECV_BUFFER_SIZE);
+    private volatile int advertised = Consts.WINDOW_SIZE;
+    private volatile IOException failure;
+
+    // frames of the current and last few groups by index, and the parities of groups not yet complete
+    private HashMap<Long, Packet> recent = new HashMap<Long, Packet>();
+    private HashMap<Long, Parity> parities = new HashMap<Long, Parity>();
+    // missing frames already asked for, so every later arrival does not ask again,
+    // and for the ones not yet asked for, how many first arrivals came past them
+    private HashSet<Long> nakked = new HashSet<Long>();
+    private HashMap<Long, Integer> skipped = new HashMap<Long, Integer>();
 
     public Receiver(Socket socket) throws IOException {
-        inStream = socket.getInputStream();
-        outStream = socket.getOutputStream();
+        this(socket, 0, null);
+    }
+
+    public Receiver(Socket socket, Codec codec) throws IOException {
+        this(socket, 0, codec);
+    }
+
+    public Receiver(Socket socket, int transferId, Codec codec) throws IOException {
+        this(new DataChannel(socket), transferId, codec);
+    }
+
+    public Receiver(DataChannel channel, int transferId, Codec codec) {
+        inStream = channel.getInputStream();
+        frames = channel.getFrameWriter();
+
+        this.transferId = transferId;
+        this.codec = codec;
     }
 
     private void sendAck(int seqNo) throws IOException {
-        AckPacket packet = new AckPacket(seqNo, 0);
+        send(Consts.TYPE_ACK, seqNo);
+    }
 
-        outStream.write(packet.get());
+    private void sendNak(int seqNo) throws IOException {
+        send(Consts.TYPE_NAK, seqNo);
     }
 
-    public void recv(OutputStream data, long length) {
-        final long chunkCount = length / Consts.CHUNK_SIZE + (length % Consts.CHUNK_SIZE > 0 ? 1 : 0);
+    // acks come from the socket reader and window updates from the writer, so both go through here.
+    private void send(int type, int seqNo) throws IOException {
+        ackLock.lock();
+        try {
+            advertised = buffer.remainingCapacity();
+
+            AckPacket packet = new AckPacket(type, seqNo, transferId, advertised, 0);
+            frames.writeControl(packet.get());
+        } finally {
+            ackLock.unlock();
+        }
+    }
+
+    // Rebuilds the one missing member of the parity's group, if it is in the window.
+    // A rebuilt frame is acked like a received one, so the sender does not resend it.
+    private void rebuild(Parity parity, long baseIndex, HashMap<Integer, Packet> packets, List<Integer> acks) {
+        long missing = -1;
+        List<Packet> others = new ArrayList<Packet>();
+
+        for (long i = parity.getFirst(); i <= parity.getLast(); ++i) {
+            Packet member = recent.get(i);
+
+            if (member != null) {
+                others.add(member);
+            } else if (missing == -1) {
+                missing = i;
+            } else {
+                // two or more lost; the sender's retransmission has to fill in.
+                return;
+            }
+        }
+
+        parities.remove(parity.getFirst());
+
+        if (missing < baseIndex || missing >= baseIndex + Consts.WINDOW_SIZE) {
+            return;
+        }
+
+        Packet packet = parity.rebuild(missing, others, transferId);
+        packets.put(packet.getSequenceNumber(), packet);
+        recent.put(missing, packet);
+        acks.add(packet.getSequenceNumber());
+    }
+
+    private static boolean inWindow(int seqNo, int baseSeqNo) {
+        return (seqNo - baseSeqNo + Consts.SEQ_NO_INTERVAL) % Consts.SEQ_NO_INTERVAL < Consts.WINDOW_SIZE;
+    }
+
+    private void prune(long baseIndex) {
+        recent.keySet().removeIf(index -> index < baseIndex - Sender.MAX_FEC_GROUP);
+        nakked.removeIf(index -> index < baseIndex);
+        skipped.keySet().removeIf(index -> index < baseIndex);
+
+        Iterator<Parity> it = parities.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().getLast() < baseIndex) {
+                it.remove();
+            }
+        }
+    }
+
+    public void recv(OutputStream data, long length) throws IOException {
+        receive(new WriteHandler(data, length), length);
+    }
+
+    // Hands the file to subscriber chunk by chunk as they arrive in order, each in a ByteBuffer of its own,
+    // and blocks until the last one is handed over and onComplete signalled. A chunk is only handed over once
+    // the subscriber asked for it; until then it waits in the buffer, whose free room is what the sender may
+    // send, so a subscriber that stops requesting holds up the sender instead of filling memory.
+    // A failure is thrown and passed to onError; a cancel fails the receive without signalling the subscriber.
+    public void recv(Flow.Subscriber<? super ByteBuffer> subscriber, long length) throws IOException {
+        WriteHandler writer = new WriteHandler(subscriber, length);
+
+        subscriber.onSubscribe(writer);
+        if (length == 0) {
+            writer.terminate(null);
+        }
+
+        try {
+            receive(writer, length);
+        } catch (IOException e) {
+            writer.fail(e);
+            throw e;
+        }
+    }
+
+    private void receive(WriteHandler writer, long length) throws IOException {
+        // the sender picks the chunk size; every frame carries it, so it is known with the first one.
+        long chunkCount = (length == 0) ? 0 : -1;
 
         long baseIndex = 0;
         HashMap<Integer, Packet> packets = new HashMap<Integer, Packet>();
 
-        while (baseIndex < chunkCount) {
-            try {
-                final int baseSeqNo = (int)(baseIndex % Consts.SEQ_NO_INTERVAL) + 1;
+        try {
+            while (chunkCount == -1 || baseIndex < chunkCount) {
+                if (failure != null) {
+                    throw failure;
+                }
 
-                byte[] chunk = new byte[Packet.length];
-                if (inStream.read(chunk) != -1) {
-                    Packet packet = new Packet(chunk);
+                try {
+                    final int baseSeqNo = (int)(baseIndex % Consts.SEQ_NO_INTERVAL) + 1;
+
+                    Packet packet = Packet.read(inStream);
+                    if (packet == null) {
+                        throw new EOFException("data channel closed");
+                    }
+
+                    if (packet.getTransferId() != transferId) {
+                        // late frame of an earlier transfer on the same channel
+                        continue;
+                    }
+
+                    if (packet.getCheckSum() == 0x0 && chunkCount == -1) {
+                        final int chunkSize = packet.getChunkSize();
+                        if (chunkSize < 1 || chunkSize > Consts.MAX_CHUNK_SIZE) {
+                            throw new IOException("bad chunk size " + chunkSize);
+                        }
+
+                        chunkCount = Payload.chunkCount(length, chunkSize);
+                    }
 
                     if (packet.getCheckSum() != 0x0) {
-                        // bit-error is occurred
+                        // bit-error is occurred; the header is intact, so ask for this frame again.
+                        if (!Parity.isParity(packet) && inWindow(packet.getSequenceNumber(), baseSeqNo)) {
+                            sendNak(packet.getSequenceNumber());
+                        }
                         continue;
                     }
 
-                    final int seqNo = packet.getSequenceNumber();
-                    sendAck(seqNo);
+                    List<Integer> acks = new ArrayList<Integer>();
 
-                    // we need to store ONLY in range packet.
-                    if ((baseSeqNo <= seqNo && seqNo <= Math.min(Consts.SEQ_NO_INTERVAL, baseSeqNo + Consts.WINDOW_SIZE)) ||
-                            (seqNo <= (baseSeqNo + Consts.WINDOW_SIZE - Consts.SEQ_NO_INTERVAL + 1))) {
-                        packets.put(seqNo, packet);
+                    if (Parity.isParity(packet)) {
+                        Parity parity = Parity.of(packet);
 
-                        System.out.print(seqNo + " ");
+                        if (parity.getLast() >= baseIndex) {
+                            parities.put(parity.getFirst(), parity);
+                            rebuild(parity, baseIndex, packets, acks);
+                        }
+                    } else {
+                        final int seqNo = packet.getSequenceNumber();
+
+                        // we need to store ONLY in range packet.
+                        if ((baseSeqNo <= seqNo && seqNo <= Math.min(Consts.SEQ_NO_INTERVAL, baseSeqNo + Consts.WINDOW_SIZE)) ||
+                                (seqNo <= (baseSeqNo + Consts.WINDOW_SIZE - Consts.SEQ_NO_INTERVAL + 1))) {
+                            packets.put(seqNo, packet);
+
+                            System.out.print(seqNo + " ");
+                        }
+
+                        final int offset = (seqNo - baseSeqNo + Consts.SEQ_NO_INTERVAL) % Consts.SEQ_NO_INTERVAL;
+                        if (offset < Consts.WINDOW_SIZE) {
+                            final long index = baseIndex + offset;
+                            final boolean first = recent.put(index, packet) == null;
+                            skipped.remove(index);
+
+                            // a first arrival counts for every gap it passed; a resend says nothing of them.
+                            for (long i = baseIndex; first && i < index; ++i) {
+                                if (!recent.containsKey(i) && !nakked.contains(i)
+                                        && skipped.merge(i, 1, Integer::sum) >= REORDER_FRAMES) {
+                                    nakked.add(i);
+                                    skipped.remove(i);
+                                    sendNak(Parity.seqOf(i));
+                                }
+                            }
+
+                            for (Parity parity : new ArrayList<Parity>(parities.values())) {
+                                if (parity.getFirst() <= index && index <= parity.getLast()) {
+                                    rebuild(parity, baseIndex, packets, acks);
+                                }
+                            }
+                        }
+
+                        acks.add(seqNo);
                     }
 
                     for (long i = baseIndex; i < baseIndex + Consts.WINDOW_SIZE && i < chunkCount; ++i) {
@@ -58,20 +447,42 @@ public class Receiver {
                             break;
                         }
 
-                        Packet pkt = packets.get(seq);
+                        // the sender keeps within the advertised window, so this only waits if it did not.
+                        while (!buffer.offer(packets.get(seq), Sender.TIME_OUT, TimeUnit.MILLISECONDS)) {
+                            if (failure != null) {
+                                throw failure;
+                            }
+                        }
 
-                        final int len = pkt.getLength();
-                        byte[] dataToWrite = new byte[len];
-                        pkt.getData(dataToWrite);
+                        writer.wake();
 
-                        data.write(dataToWrite);
                         packets.remove(seq);
                         ++baseIndex;
                     }
+
+                    prune(baseIndex);
+
+                    // acked after delivery, so the window it carries already accounts for this chunk.
+                    for (int seq : acks) {
+                        sendAck(seq);
+                    }
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // Do nothing
                 }
-            } catch (Exception e) {
-                // Do nothing
             }
+
+            writer.await();
+        } catch (InterruptedException e) {
+            throw new IOException("receiver interrupted");
+        } finally {
+            writer.stop();
+        }
+
+        if (failure != null) {
+            throw failure;
         }
+
     }
 }
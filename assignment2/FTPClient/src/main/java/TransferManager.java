@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+
+// GET and PUT jobs that run in the background while the prompt keeps taking commands.
+// A fixed number of workers (-Dftp.jobs.parallel, default 4) take queued jobs by priority, highest
+// first and in submission order among equals. Every worker has a session of its own, opened on its
+// first job and kept for the next, and changes into the directory the job was queued in; settings
+// of the interactive session (MODE, EMULATE, FEC, DROP, ...) do not carry over.
+class TransferManager {
+    public static final String PARALLEL_PROPERTY = "ftp.jobs.parallel";
+    public static final int DEFAULT_PARALLEL = 4;
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    public class Job implements Comparable<Job> {
+        private int id;
+        private String verb;
+        private String path;
+        private String directory;
+        private int priority;
+
+        private State state = State.QUEUED;
+        // the session the job runs on, while it is RUNNING
+        private Connection conn;
+        private long started;
+        private long finished;
+
+        private Job(int id, String verb, String path, String directory, int priority) {
+            this.id = id;
+            this.verb = verb;
+            this.path = path;
+            this.directory = directory;
+            this.priority = priority;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+
+            return Integer.compare(id, other.id);
+        }
+
+        public String describe() {
+            String line = id + " " + state + " priority " + priority + " " + verb + " " + path;
+
+            if (state == State.RUNNING) {
+                line += " (" + (System.currentTimeMillis() - started) / 1000 + " s)";
+            } else if (started != 0 && state != State.QUEUED) {
+                line += " (" + (finished - started) / 1000 + " s)";
+            }
+
+            return line;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private Connection conn;
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (job == STOP) {
+                    break;
+                }
+
+                if (!start(job)) {
+                    continue;
+                }
+
+                final boolean ok = execute(job);
+                if (!ok) {
+                    close();
+                }
+
+                finish(job, ok);
+            }
+
+            close();
+        }
+
+        private boolean execute(Job job) {
+            try {
+                if (conn == null) {
+                    conn = new Connection(host, ctlPort, dataPort, binary);
+                }
+
+                if (!attach(job, conn)) {
+                    return false;
+                }
+
+                if (job.directory != null) {
+                    conn.sendCommand("CD", job.directory);
+
+                    Control.Message reply = conn.recvReply();
+                    if (!reply.isSuccess()) {
+                        System.out.println("[job " + job.id + "] " + reply);
+                        return false;
+                    }
+                }
+
+                if (job.verb.equals("GET")) {
+                    final String name = Path.of(job.path).getFileName().toString();
+
+                    conn.sendCommand("GET", job.path);
+
+                    // a cancelled or broken download deletes what it wrote itself
+                    return conn.recvData(name);
+                }
+
+                File file = new File(job.path);
+                try (FileInputStream inp = new FileInputStream(file)) {
+                    conn.sendCommand("PUT", job.path);
+                    return conn.sendData(inp, file.getName(), file.length());
+                }
+            } catch (FileNotFoundException e) {
+                System.out.println("[job " + job.id + "] file not exists");
+                return false;
+            } catch (IOException e) {
+                System.out.println("[job " + job.id + "] " + e.getMessage());
+                return false;
+            }
+        }
+
+        // a failed transfer may leave the session out of step, so the next job opens a new one.
+        private void close() {
+            if (conn != null) {
+                conn.close();
+                conn = null;
+            }
+        }
+    }
+
+    // queued behind every real job, one per worker, to let the workers go once the queue is drained.
+    private final Job STOP = new Job(Integer.MAX_VALUE, null, null, null, Integer.MIN_VALUE);
+
+    private String host;
+    private int ctlPort;
+    private int dataPort;
+    private boolean binary;
+
+    private PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>();
+    private Map<Integer, Job> jobs = new LinkedHashMap<Integer, Job>();
+    private List<Thread> workers = new ArrayList<Thread>();
+    private int nextId = 1;
+    private boolean shutdown = false;
+
+    public TransferManager(String host, int ctlPort, int dataPort, boolean binary, int parallel) {
+        this.host = host;
+        this.ctlPort = ctlPort;
+        this.dataPort = dataPort;
+        this.binary = binary;
+
+        for (int i = 0; i < parallel; ++i) {
+            workers.add(SR.Threads.start("transfer", new Worker()));
+        }
+    }
+
+    // verb is GET or PUT; directory is the remote directory the path is relative to.
+    public synchronized Job submit(String verb, String path, String directory, int priority) {
+        if (shutdown) {
+            throw new IllegalStateException("transfer manager is shut down");
+        }
+
+        Job job = new Job(nextId++, verb, path, directory, priority);
+        jobs.put(job.id, job);
+        queue.add(job);
+
+        return job;
+    }
+
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<String>();
+
+        for (Job job : jobs.values()) {
+            lines.add(job.describe());
+        }
+
+        return lines;
+    }
+
+    // finished jobs are listed once more and then forgotten.
+    public synchronized void purge() {
+        jobs.values().removeIf(job -> job.state != State.QUEUED && job.state != State.RUNNING);
+    }
+
+    // false if there is no such job or it is already over. A running job is stopped by closing its
+    // session under it; its worker opens a new one for the next job. The session is closed under the
+    // lock, while the job still holds it, so it cannot be one its worker has moved on to.
+    public synchronized boolean cancel(int id) {
+        Job job = jobs.get(id);
+
+        if (job == null || (job.state != State.QUEUED && job.state != State.RUNNING)) {
+            return false;
+        }
+
+        if (job.state == State.RUNNING && job.conn != null) {
+            job.conn.close();
+        }
+
+        queue.remove(job);
+        job.state = State.CANCELLED;
+        job.finished = System.currentTimeMillis();
+
+        return true;
+    }
+
+    public int cancelAll() {
+        List<Integer> ids;
+        synchronized (this) {
+            ids = new ArrayList<Integer>(jobs.keySet());
+        }
+
+        int cancelled = 0;
+        for (int id : ids) {
+            if (cancel(id)) {
+                ++cancelled;
+            }
+        }
+
+        return cancelled;
+    }
+
+    // a queued job moves within the queue; a running one is not affected any more.
+    public synchronized boolean setPriority(int id, int priority) {
+        Job job = jobs.get(id);
+
+        if (job == null || job.state != State.QUEUED) {
+            return false;
+        }
+
+        queue.remove(job);
+        job.priority = priority;
+        queue.add(job);
+
+        return true;
+    }
+
+    public synchronized int getPending() {
+        int pending = 0;
+
+        for (Job job : jobs.values()) {
+            if (job.state == State.QUEUED || job.state == State.RUNNING) {
+                ++pending;
+            }
+        }
+
+        return pending;
+    }
+
+    // lets every queued and running job finish, then closes the workers' sessions.
+    public void shutdown() throws InterruptedException {
+        synchronized (this) {
+            shutdown = true;
+        }
+
+        for (int i = 0; i < workers.size(); ++i) {
+            queue.add(STOP);
+        }
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private synchronized boolean start(Job job) {
+        if (job.state != State.QUEUED) {
+            return false;
+        }
+
+        job.state = State.RUNNING;
+        job.started = System.currentTimeMillis();
+
+        System.out.println("[job " + job.id + "] " + job.verb + " " + job.path + " started");
+        return true;
+    }
+
+    // false if the job was cancelled before it had a session to close.
+    private synchronized boolean attach(Job job, Connection conn) {
+        if (job.state != State.RUNNING) {
+            return false;
+        }
+
+        job.conn = conn;
+        return true;
+    }
+
+    private void finish(Job job, boolean ok) {
+        synchronized (this) {
+            job.conn = null;
+
+            if (job.state == State.CANCELLED) {
+                System.out.println("[job " + job.id + "] cancelled");
+                return;
+            }
+
+            job.state = ok ? State.DONE : State.FAILED;
+            job.finished = System.currentTimeMillis();
+        }
+
+        System.out.println("[job " + job.id + "] " + job.verb + " " + job.path + (ok ? " done" : " failed"));
+    }
+}
@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Server-wide pacing of data frames. A global token bucket caps the server, and every session paces
+// itself with its own bucket. That bucket's rate is the session's weighted share of the global and
+// per-user limits, among the sessions currently sending, capped by the session's own limit.
+// A bulk GET therefore cannot take more than its share: a session that starts a transfer gets its
+// share straight away instead of queueing behind the bulk one. Rates are bytes per second, 0 means unlimited.
+// The global and per-user limits are the operator's: clients may only narrow their own session, within
+// the configured session limit, unless REMOTE_PROPERTY lets them change the others too.
+class BandwidthManager {
+    public static final String GLOBAL_PROPERTY = "ftp.bandwidth.global";
+    public static final String USER_PROPERTY = "ftp.bandwidth.user";
+    public static final String SESSION_PROPERTY = "ftp.bandwidth.session";
+    public static final String REMOTE_PROPERTY = "ftp.bandwidth.remote";
+
+    // a session counts as sending for this long after its last frame
+    private static final long ACTIVE_NANOS = 500_000_000L;
+    // shares are recomputed at most this often per session
+    private static final long SHARE_NANOS = 50_000_000L;
+    // buckets hold at most this much time worth of tokens
+    private static final double BURST_SECONDS = 0.05;
+
+    private static class TokenBucket {
+        private double rate;
+        private double tokens = 0;
+        private long last = System.nanoTime();
+
+        public synchronized void setRate(double rate) {
+            this.rate = rate;
+        }
+
+        // Takes bytes from the bucket and returns how long the caller has to wait for them.
+        // The bucket may go into debt, so concurrent callers queue up behind each other.
+        public synchronized long reserve(int bytes) {
+            if (rate <= 0) {
+                return 0;
+            }
+
+            final long now = System.nanoTime();
+            tokens = Math.min(rate * BURST_SECONDS, tokens + rate * (now - last) / 1e9);
+            last = now;
+
+            tokens -= bytes;
+
+            return (tokens >= 0) ? 0 : (long) (-tokens / rate * 1e9);
+        }
+    }
+
+    public class Session implements SR.RateLimiter {
+        private String user;
+        private long limit;
+        private int weight = 1;
+
+        private TokenBucket bucket = new TokenBucket();
+        private long lastSent = 0;
+        private long lastShare = 0;
+
+        private Session(String user, long limit) {
+            this.user = user;
+            this.limit = limit;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        @Override
+        public long reserve(int bytes) {
+            final long now = System.nanoTime();
+
+            boolean stale;
+            synchronized (BandwidthManager.this) {
+                stale = now - lastSent > ACTIVE_NANOS || now - lastShare > SHARE_NANOS;
+                lastSent = now;
+            }
+
+            if (stale) {
+                bucket.setRate(share(this));
+            }
+
+            return Math.max(bucket.reserve(bytes), global.reserve(bytes));
+        }
+
+        public void close() {
+            unregister(this);
+        }
+    }
+
+    private TokenBucket global = new TokenBucket();
+    private long globalLimit;
+    private long defaultUserLimit;
+    private long defaultSessionLimit;
+    private boolean remote;
+
+    private Map<String, Long> userLimits = new HashMap<String, Long>();
+    private List<Session> sessions = new ArrayList<Session>();
+
+    // remote: clients may set the global and per-user limits as well.
+    public BandwidthManager(long globalLimit, long userLimit, long sessionLimit, boolean remote) {
+        this.globalLimit = globalLimit;
+        this.defaultUserLimit = userLimit;
+        this.defaultSessionLimit = sessionLimit;
+        this.remote = remote;
+
+        global.setRate(globalLimit);
+    }
+
+    public synchronized Session register(String user) {
+        Session session = new Session(user, defaultSessionLimit);
+        sessions.add(session);
+
+        return session;
+    }
+
+    private synchronized void unregister(Session session) {
+        sessions.remove(session);
+    }
+
+    public synchronized void setGlobalLimit(long limit) {
+        globalLimit = limit;
+        global.setRate(limit);
+
+        invalidate();
+    }
+
+    public synchronized void setUserLimit(String user, long limit) {
+        userLimits.put(user, limit);
+
+        invalidate();
+    }
+
+    public boolean isRemote() {
+        return remote;
+    }
+
+    // never above the configured session limit; 0 goes back to it.
+    public synchronized void setSessionLimit(Session session, long limit) {
+        if (defaultSessionLimit > 0) {
+            limit = (limit == 0) ? defaultSessionLimit : Math.min(limit, defaultSessionLimit);
+        }
+
+        session.limit = limit;
+
+        invalidate();
+    }
+
+    public synchronized void setWeight(Session session, int weight) {
+        session.weight = weight;
+
+        invalidate();
+    }
+
+    public synchronized String describe(Session session) {
+        int active = 0;
+        final long now = System.nanoTime();
+
+        for (Session s : sessions) {
+            if (now - s.lastSent <= ACTIVE_NANOS) {
+                ++active;
+            }
+        }
+
+        return "global " + globalLimit + ", user " + userLimits.getOrDefault(session.user, defaultUserLimit)
+                + ", session " + session.limit + ", weight " + session.weight + ", " + active + " of "
+                + sessions.size() + " sessions sending";
+    }
+
+    // makes every session recompute its share before its next frame.
+    private void invalidate() {
+        for (Session session : sessions) {
+            session.lastShare = 0;
+        }
+    }
+
+    private synchronized double share(Session session) {
+        final long now = System.nanoTime();
+        session.lastShare = now;
+
+        int totalWeight = 0, userWeight = 0;
+        for (Session s : sessions) {
+            if (s != session && now - s.lastSent > ACTIVE_NANOS) {
+                continue;
+            }
+
+            totalWeight += s.weight;
+            if (s.user.equals(session.user)) {
+                userWeight += s.weight;
+            }
+        }
+
+        double rate = Double.MAX_VALUE;
+
+        if (globalLimit > 0) {
+            rate = Math.min(rate, (double) globalLimit * session.weight / totalWeight);
+        }
+
+        final long userLimit = userLimits.getOrDefault(session.user, defaultUserLimit);
+        if (userLimit > 0) {
+            rate = Math.min(rate, (double) userLimit * session.weight / userWeight);
+        }
+
+        if (session.limit > 0) {
+            rate = Math.min(rate, session.limit);
+        }
+
+        return (rate == Double.MAX_VALUE) ? 0 : rate;
+    }
+}
@@ -0,0 +1,111 @@
+package Batch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Archive-like stream for many small files: the whole index comes first, then the contents back to back
+// with no per-file framing, so every SR packet is full no matter how small the files are.
+public class PackInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Manifest manifest;
+    private Iterator<Manifest.Entry> indexQueue;
+    private Iterator<Manifest.Entry> dataQueue;
+
+    private byte[] header;
+    private int headerPos = 0;
+
+    private InputStream file = null;
+    private long fileRemaining = 0;
+
+    public PackInputStream(Manifest manifest) {
+        this.manifest = manifest;
+
+        indexQueue = manifest.getEntries().iterator();
+        dataQueue = manifest.getEntries().iterator();
+
+        header = ByteBuffer.allocate(Manifest.FILE_COUNT_SIZE).putInt(manifest.getEntries().size()).array();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+
+        return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        while (headerPos == header.length && fileRemaining == 0) {
+            if (!next()) {
+                return -1;
+            }
+        }
+
+        if (headerPos < header.length) {
+            final int n = Math.min(len, header.length - headerPos);
+
+            System.arraycopy(header, headerPos, buf, off, n);
+            headerPos += n;
+
+            return n;
+        }
+
+        int n = file.read(buf, off, (int)Math.min(len, fileRemaining));
+        if (n == -1) {
+            // the file shrank since the index was made; keep the boundaries the receiver expects.
+            n = (int)Math.min(len, fileRemaining);
+            Arrays.fill(buf, off, off + n, (byte)0);
+        }
+
+        fileRemaining -= n;
+        return n;
+    }
+
+    private boolean next() throws IOException {
+        if (indexQueue.hasNext()) {
+            Manifest.Entry entry = indexQueue.next();
+            byte[] path = entry.getPathBytes();
+
+            header = ByteBuffer.allocate(Manifest.PATH_LEN_SIZE + path.length + Manifest.FILE_SIZE_SIZE)
+                    .putShort((short)path.length)
+                    .put(path)
+                    .putLong(entry.size)
+                    .array();
+            headerPos = 0;
+
+            return true;
+        }
+
+        closeFile();
+
+        if (!dataQueue.hasNext()) {
+            return false;
+        }
+
+        Manifest.Entry entry = dataQueue.next();
+
+        file = new BufferedInputStream(new FileInputStream(entry.file), BUFFER_SIZE);
+        fileRemaining = entry.size;
+
+        return true;
+    }
+
+    private void closeFile() throws IOException {
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeFile();
+    }
+}
@@ -0,0 +1,138 @@
+package Batch;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// What FileQueueOutputStream and PackOutputStream share: entries of [path length][path][size] read
+// as they arrive, and the files they name written below a root directory, one at a time.
+public abstract class Unpacker extends OutputStream {
+    private Path root;
+
+    private ByteBuffer entry = ByteBuffer.allocate(Manifest.PATH_LEN_SIZE);
+    private int pathLength = -1;
+
+    private OutputStream file = null;
+    private Path target;
+    private long fileRemaining = 0;
+
+    protected Unpacker(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+
+        Files.createDirectories(this.root);
+    }
+
+    // an entry has been read in full
+    protected abstract void onEntry(String path, long size) throws IOException;
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    // takes bytes of the next entry and returns how many; onEntry runs once it is complete.
+    protected int readEntry(byte[] data, int off, int len) throws IOException {
+        final int n = Math.min(len, entry.remaining());
+        entry.put(data, off, n);
+
+        if (entry.hasRemaining()) {
+            return n;
+        }
+
+        entry.flip();
+        if (pathLength == -1) {
+            pathLength = entry.getShort() & 0xFFFF;
+            entry = ByteBuffer.allocate(pathLength + Manifest.FILE_SIZE_SIZE);
+        } else {
+            byte[] path = new byte[pathLength];
+            entry.get(path);
+            final long size = entry.getLong();
+
+            pathLength = -1;
+            entry = ByteBuffer.allocate(Manifest.PATH_LEN_SIZE);
+
+            onEntry(new String(path, StandardCharsets.UTF_8), size);
+        }
+
+        return n;
+    }
+
+    // the file path names below root; one that leaves root, or is root itself, is refused.
+    protected Path resolve(String path) throws IOException {
+        Path target = root.resolve(path).normalize();
+
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("invalid path in batch: " + path);
+        }
+
+        return target;
+    }
+
+    // The directories below root are created one at a time and a link is never followed, neither
+    // on the way nor at the file itself, so a link already under root cannot lead a path out of it.
+    // An empty file is closed straight away.
+    protected void openFile(Path target, long size) throws IOException {
+        Path dir = root;
+
+        for (Path name : root.relativize(target.getParent())) {
+            dir = dir.resolve(name);
+
+            if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectory(dir);
+            } else if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException("not a directory in batch: " + root.relativize(dir));
+            }
+        }
+
+        file = new BufferedOutputStream(Files.newOutputStream(target, LinkOption.NOFOLLOW_LINKS,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        this.target = target;
+        fileRemaining = size;
+
+        if (size == 0) {
+            closeFile();
+        }
+    }
+
+    protected boolean isFileOpen() {
+        return file != null;
+    }
+
+    // takes bytes of the open file and returns how many; the file is closed at its end.
+    protected int writeFile(byte[] data, int off, int len) throws IOException {
+        final int n = (int)Math.min(len, fileRemaining);
+
+        file.write(data, off, n);
+        fileRemaining -= n;
+
+        if (fileRemaining == 0) {
+            closeFile();
+        }
+
+        return n;
+    }
+
+    private void closeFile() throws IOException {
+        file.close();
+        file = null;
+    }
+
+    // a failed transfer: the file being written is incomplete and is removed, the ones before it stay.
+    public void abort() {
+        if (file == null) {
+            return;
+        }
+
+        try {
+            closeFile();
+        } catch (IOException ignored) {
+            // it is deleted anyway
+        }
+
+        target.toFile().delete();
+    }
+}
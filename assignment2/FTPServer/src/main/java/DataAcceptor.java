@@ -0,0 +1,95 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.*;
+
+// Owns the data port for the whole server. A client opens its data channel once per session and
+// identifies it with the token its session handed out over the control channel.
+// The accept loop only accepts: every token is read on a thread of its own, so a connection that
+// sends nothing holds up nobody else's DATA.
+class DataAcceptor {
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+
+    private ServerSocket serverSocket;
+    private Map<Long, CompletableFuture<Socket>> pending = new ConcurrentHashMap<Long, CompletableFuture<Socket>>();
+    private ExecutorService handshakes = SR.Threads.newCachedExecutor("data-handshake");
+
+    public DataAcceptor(int dataPort) throws IOException {
+        serverSocket = new ServerSocket(dataPort);
+
+        Thread worker = new Thread(this::accept);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public CompletableFuture<Socket> expect(long token) {
+        CompletableFuture<Socket> future = new CompletableFuture<Socket>();
+        pending.put(token, future);
+
+        return future;
+    }
+
+    public Socket await(long token, CompletableFuture<Socket> future) throws IOException {
+        try {
+            return future.get(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            // a socket that arrives from now on is handed to nobody, so it is closed
+            if (!future.cancel(false)) {
+                close(future.getNow(null));
+            }
+
+            throw new IOException("data channel was not opened");
+        } finally {
+            pending.remove(token);
+        }
+    }
+
+    private void accept() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+
+            try {
+                handshakes.execute(() -> handshake(socket));
+            } catch (RejectedExecutionException e) {
+                close(socket);
+            }
+        }
+    }
+
+    private void handshake(Socket socket) {
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            final long token = new DataInputStream(socket.getInputStream()).readLong();
+            socket.setSoTimeout(0);
+
+            // no session waits for it any more, or it gave up just now
+            CompletableFuture<Socket> future = pending.remove(token);
+            if (future == null || !future.complete(socket)) {
+                close(socket);
+            }
+        } catch (IOException e) {
+            close(socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package Delta;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// rsync-style block checksums: a cheap rolling one to find candidates, a strong one to confirm them.
+public class Checksum {
+    private int a = 0, b = 0;
+    private int blockSize;
+
+    public Checksum(byte[] block, int offset, int length) {
+        blockSize = length;
+
+        for (int i = 0; i < length; ++i) {
+            final int x = block[offset + i] & 0xFF;
+
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    public void roll(byte out, byte in) {
+        a += (in & 0xFF) - (out & 0xFF);
+        b += a - blockSize * (out & 0xFF);
+    }
+
+    public int getValue() {
+        return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+    }
+
+    public static String strong(byte[] block, int offset, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(block, offset, length);
+
+            StringBuilder builder = new StringBuilder();
+            for (byte v : digest.digest()) {
+                builder.append(String.format("%02x", v & 0xFF));
+            }
+
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package Delta;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Turns a file into COPY (block references) and LITERAL (raw bytes) instructions against a remote signature.
+// Memory is bounded by a few blocks, no matter how large the file is.
+public class Encoder {
+    public static final int OP_COPY = 'C';
+    public static final int OP_LITERAL = 'L';
+
+    private Signature signature;
+    private int blockSize;
+
+    private DataOutputStream out;
+
+    private byte[] buf;
+    private int litStart = 0, start = 0, end = 0;
+    private boolean eof = false;
+
+    private int copyFirst = -1, copyCount = 0;
+
+    private long literalBytes = 0;
+    private long copiedBytes = 0;
+
+    public Encoder(Signature signature, OutputStream out) {
+        this.signature = signature;
+        this.blockSize = signature.getBlockSize();
+        this.out = new DataOutputStream(out);
+
+        buf = new byte[Math.max(blockSize * 4, 64 * 1024)];
+    }
+
+    public void encode(InputStream inp) throws IOException {
+        Checksum checksum = null;
+
+        while (true) {
+            fill(inp, blockSize + 1);
+
+            if (end - start < blockSize) {
+                break;
+            }
+
+            if (signature.getBlocks().isEmpty()) {
+                // nothing to match against: just move the window forward.
+                start = end - blockSize;
+                if (eof) {
+                    break;
+                }
+                continue;
+            }
+
+            if (checksum == null) {
+                checksum = new Checksum(buf, start, blockSize);
+            }
+
+            Signature.Block block = signature.find(checksum.getValue(), buf, start);
+            if (block != null) {
+                emitLiteral(litStart, start);
+                emitCopy(block.index);
+
+                start += blockSize;
+                litStart = start;
+                checksum = null;
+                continue;
+            }
+
+            if (end - start == blockSize) {
+                break;
+            }
+
+            checksum.roll(buf[start], buf[start + blockSize]);
+            ++start;
+        }
+
+        emitLiteral(litStart, end);
+        flushCopy();
+        out.flush();
+    }
+
+    private void fill(InputStream inp, int need) throws IOException {
+        if (eof || end - start >= need) {
+            return;
+        }
+
+        if (buf.length - start < need) {
+            // keep the pending literal out of the way before compacting the buffer.
+            emitLiteral(litStart, start);
+
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = litStart = 0;
+        }
+
+        while (end - start < need) {
+            final int read = inp.read(buf, end, buf.length - end);
+            if (read == -1) {
+                eof = true;
+                break;
+            }
+
+            end += read;
+        }
+    }
+
+    private void emitLiteral(int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+
+        flushCopy();
+
+        out.writeByte(OP_LITERAL);
+        out.writeInt(to - from);
+        out.write(buf, from, to - from);
+
+        literalBytes += to - from;
+        litStart = to;
+    }
+
+    private void emitCopy(int index) throws IOException {
+        if (copyFirst != -1 && copyFirst + copyCount == index) {
+            ++copyCount;
+        } else {
+            flushCopy();
+
+            copyFirst = index;
+            copyCount = 1;
+        }
+
+        copiedBytes += blockSize;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyFirst == -1) {
+            return;
+        }
+
+        out.writeByte(OP_COPY);
+        out.writeInt(copyFirst);
+        out.writeInt(copyCount);
+
+        copyFirst = -1;
+        copyCount = 0;
+    }
+
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+}
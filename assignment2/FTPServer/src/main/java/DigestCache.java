@@ -0,0 +1,84 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Content digests of served files, keyed by canonical path and validated by mtime and size,
+// so a file is only read in full when it is new or has changed since it was last hashed.
+class DigestCache {
+    public static final String ALGORITHM = "SHA-256";
+
+    private static class Digest {
+        public long mtime;
+        public long size;
+        public String digest;
+
+        public Digest(long mtime, long size, String digest) {
+            this.mtime = mtime;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+
+    private Map<String, Digest> entries;
+
+    public DigestCache(final int capacity) {
+        entries = new LinkedHashMap<String, Digest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Digest> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public String get(File file) throws IOException {
+        final String key = file.getCanonicalPath();
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        final long size = attrs.size();
+
+        synchronized (this) {
+            Digest entry = entries.get(key);
+
+            if (entry != null && entry.mtime == mtime && entry.size == size) {
+                return entry.digest;
+            }
+        }
+
+        final String digest = compute(file);
+
+        synchronized (this) {
+            entries.put(key, new Digest(mtime, size, digest));
+        }
+
+        return digest;
+    }
+
+    public static String compute(File file) throws IOException {
+        try (InputStream inp = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance(ALGORITHM);
+
+            byte[] buf = new byte[64 * 1024];
+            int read;
+            while ((read = inp.read(buf)) != -1) {
+                digest.update(buf, 0, read);
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for (byte v : digest.digest()) {
+                builder.append(String.format("%02x", v & 0xFF));
+            }
+
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
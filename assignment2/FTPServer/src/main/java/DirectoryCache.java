@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Listings of recently used directories. A directory is scanned once with a single attribute read
+// per entry; after that a WatchService keeps it up to date one entry at a time, so repeated LISTs
+// of an unchanged directory reuse the same snapshot.
+class DirectoryCache {
+    public static class Entry {
+        private String name;
+        private String line;
+
+        public Entry(String name, BasicFileAttributes attrs) {
+            this.name = name;
+
+            line = name + "," + (attrs.isDirectory() ? "-" : Long.toString(attrs.size()));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // reply line for LIST, rendered once per change instead of once per request.
+        public String getLine() {
+            return line;
+        }
+    }
+
+    private class Listing {
+        private Path dir;
+        private WatchKey key;
+
+        private TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+        private Entry[] snapshot = null;
+
+        public Listing(Path dir) {
+            this.dir = dir;
+        }
+
+        public synchronized void scan() throws IOException {
+            entries.clear();
+            snapshot = null;
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    Entry entry = read(path);
+
+                    if (entry != null) {
+                        entries.put(entry.getName(), entry);
+                    }
+                }
+            }
+        }
+
+        public synchronized Entry[] snapshot() {
+            if (snapshot == null) {
+                snapshot = entries.values().toArray(new Entry[0]);
+            }
+
+            return snapshot;
+        }
+
+        public synchronized void update(String name) {
+            Entry entry = read(dir.resolve(name));
+
+            if (entry != null) {
+                entries.put(name, entry);
+            } else {
+                entries.remove(name);
+            }
+
+            snapshot = null;
+        }
+    }
+
+    private WatchService watcher;
+
+    private Map<Path, Listing> listings;
+    private Map<WatchKey, Listing> keys = new ConcurrentHashMap<WatchKey, Listing>();
+
+    public DirectoryCache(final int capacity) throws IOException {
+        watcher = FileSystems.getDefault().newWatchService();
+
+        listings = new LinkedHashMap<Path, Listing>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+
+                forget(eldest.getValue());
+                return true;
+            }
+        };
+
+        Thread worker = new Thread(this::watch);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Entry[] list(Path dir) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+
+        synchronized (this) {
+            Listing listing = listings.get(dir);
+
+            if (listing != null && listing.key.isValid()) {
+                return listing.snapshot();
+            }
+        }
+
+        // register first, so nothing that changes during the scan is missed.
+        Listing listing = new Listing(dir);
+        listing.key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        listing.scan();
+
+        synchronized (this) {
+            Listing old = listings.put(dir, listing);
+
+            if (old != null && old.key != listing.key) {
+                forget(old);
+            }
+
+            keys.put(listing.key, listing);
+        }
+
+        return listing.snapshot();
+    }
+
+    // lets writers make their own change visible right away, without waiting for the watcher.
+    public void touch(Path file) {
+        file = file.toAbsolutePath().normalize();
+
+        Listing listing;
+        synchronized (this) {
+            listing = listings.get(file.getParent());
+        }
+
+        if (listing != null) {
+            listing.update(file.getFileName().toString());
+        }
+    }
+
+    // position of the first entry that sorts after name, for resuming paginated listings.
+    public static int indexAfter(Entry[] entries, String name) {
+        int low = 0, high = entries.length;
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+
+            if (entries[mid].getName().compareTo(name) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private void forget(Listing listing) {
+        listing.key.cancel();
+        keys.remove(listing.key);
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Listing listing = keys.get(key);
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (listing == null) {
+                    continue;
+                }
+
+                try {
+                    if (event.kind() == OVERFLOW) {
+                        listing.scan();
+                    } else {
+                        listing.update(event.context().toString());
+                    }
+                } catch (IOException e) {
+                    // the directory is gone; the invalid key drops it below.
+                }
+            }
+
+            if (!key.reset() && listing != null) {
+                synchronized (this) {
+                    listings.remove(listing.dir, listing);
+                    keys.remove(key);
+                }
+            }
+        }
+    }
+
+    private static Entry read(Path path) {
+        final String name = path.getFileName().toString();
+
+        try {
+            return new Entry(name, Files.readAttributes(path, BasicFileAttributes.class));
+        } catch (IOException e) {
+            // dangling links are still listed, as themselves.
+            try {
+                return new Entry(name, Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+            } catch (IOException ignored) {
+                return null;
+            }
+        }
+    }
+}
@@ -2,9 +2,18 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 class Status {
     public static final int OK = 200;
@@ -23,6 +32,11 @@ abstract class Response {
     public String getResponseMessage() {
         return getStatusCode() + " " + getRawResponseMessage();
     }
+
+    // typed fields of the reply in binary control mode; by default just the message text.
+    public Object[] getFields() {
+        return new Object[] { getRawResponseMessage() };
+    }
 }
 
 class SyntaxErrResponse extends Response {
@@ -92,20 +106,77 @@ class ListSuccessResponse extends Response {
         return "Comprising " + count + " entires";
     }
 
+    public Object[] getFields() {
+        return new Object[] { (long) count };
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class ListPageResponse extends Response {
+    private int count;
+    private String cursor;
+
+    public ListPageResponse(int count, String cursor) {
+        this.count = count;
+        this.cursor = cursor;
+    }
+
+    public String getRawResponseMessage() {
+        return "Comprising " + count + " entries, next " + cursor;
+    }
+
+    public Object[] getFields() {
+        return new Object[] { (long) count, cursor };
+    }
+
     public int getStatusCode() {
         return Status.OK;
     }
 }
 
 class GetSuccessResponse extends Response {
-    private File file;
+    private long length;
+    private int transferId;
 
-    public GetSuccessResponse(File file) {
-        this.file = file;
+    public GetSuccessResponse(long length, int transferId) {
+        this.length = length;
+        this.transferId = transferId;
+    }
+
+    public String getRawResponseMessage() {
+        return "Containing " + length + " bytes in total, transfer " + transferId;
+    }
+
+    public Object[] getFields() {
+        return new Object[] { length, (long) transferId };
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class BatchSuccessResponse extends Response {
+    private Batch.Manifest manifest;
+
+    private long length;
+    private int transferId;
+
+    public BatchSuccessResponse(Batch.Manifest manifest, long length, int transferId) {
+        this.manifest = manifest;
+        this.length = length;
+        this.transferId = transferId;
     }
 
     public String getRawResponseMessage() {
-        return "Containing " + file.length() + " bytes in total";
+        return "Containing " + manifest.getEntries().size() + " files, " + length + " bytes in total, transfer " + transferId;
+    }
+
+    public Object[] getFields() {
+        return new Object[] { (long) manifest.getEntries().size(), length, (long) transferId };
     }
 
     public int getStatusCode() {
@@ -114,8 +185,216 @@ class GetSuccessResponse extends Response {
 }
 
 class ReadyToReceiveResponse extends Response {
+    private int transferId;
+
+    public ReadyToReceiveResponse(int transferId) {
+        this.transferId = transferId;
+    }
+
+    public String getRawResponseMessage() {
+        return "Ready to receive, transfer " + transferId;
+    }
+
+    public Object[] getFields() {
+        return new Object[] { (long) transferId };
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class SignatureResponse extends Response {
+    private Delta.Signature signature;
+
+    public SignatureResponse(Delta.Signature signature) {
+        this.signature = signature;
+    }
+
+    public String getRawResponseMessage() {
+        return "Comprising " + signature.getBlocks().size() + " blocks of " + signature.getBlockSize() + " bytes";
+    }
+
+    public Object[] getFields() {
+        return new Object[] { (long) signature.getBlocks().size(), (long) signature.getBlockSize() };
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class DigestResponse extends Response {
+    private String digest;
+
+    public DigestResponse(String digest) {
+        this.digest = digest;
+    }
+
+    public String getRawResponseMessage() {
+        return DigestCache.ALGORITHM + " " + digest;
+    }
+
+    public Object[] getFields() {
+        return new Object[] { DigestCache.ALGORITHM, digest };
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class ModeResponse extends Response {
+    private String mode;
+
+    public ModeResponse(String mode) {
+        this.mode = mode;
+    }
+
+    public String getRawResponseMessage() {
+        return "Transfer mode set to " + mode;
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class DataChannelResponse extends Response {
+    private long token;
+
+    public DataChannelResponse(long token) {
+        this.token = token;
+    }
+
+    public String getRawResponseMessage() {
+        return "Data channel token " + token;
+    }
+
+    public Object[] getFields() {
+        return new Object[] { token };
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class BinaryControlResponse extends Response {
+    public String getRawResponseMessage() {
+        return "Binary control framing enabled";
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class CacheStatsResponse extends Response {
+    private String stats;
+
+    public CacheStatsResponse(String stats) {
+        this.stats = stats;
+    }
+
+    public String getRawResponseMessage() {
+        return "Object cache: " + stats;
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class ThrottleResponse extends Response {
+    private String description;
+
+    public ThrottleResponse(String description) {
+        this.description = description;
+    }
+
+    public String getRawResponseMessage() {
+        return "Bandwidth " + description;
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class FecResponse extends Response {
+    private int fec;
+
+    public FecResponse(int fec) {
+        this.fec = fec;
+    }
+
+    public String getRawResponseMessage() {
+        return "Parity " + SR.Sender.describeFec(fec);
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class EmulationResponse extends Response {
+    private SR.Emulator.Profile profile;
+
+    public EmulationResponse(SR.Emulator.Profile profile) {
+        this.profile = profile;
+    }
+
+    public String getRawResponseMessage() {
+        return (profile == null) ? "Emulation off" : "Emulating " + profile;
+    }
+
+    public int getStatusCode() {
+        return Status.OK;
+    }
+}
+
+class TlsUnavailableResponse extends Response {
+    public String getRawResponseMessage() {
+        return "TLS is not configured on this server";
+    }
+
+    public int getStatusCode() {
+        return Status.FAIL;
+    }
+}
+
+class NoDataChannelResponse extends Response {
     public String getRawResponseMessage() {
-        return "Ready to receive";
+        return "Data channel is not open";
+    }
+
+    public int getStatusCode() {
+        return Status.FAIL;
+    }
+}
+
+class NotPermittedResponse extends Response {
+    public String getRawResponseMessage() {
+        return "Not permitted on this server";
+    }
+
+    public int getStatusCode() {
+        return Status.FAIL;
+    }
+}
+
+class StatResponse extends Response {
+    private File file;
+
+    public StatResponse(File file) {
+        this.file = file;
+    }
+
+    public String getRawResponseMessage() {
+        String size = file.isDirectory() ? "-" : String.valueOf(file.length());
+
+        return file.getName() + "," + size + "," + file.lastModified();
     }
 
     public int getStatusCode() {
@@ -129,25 +408,61 @@ class Connection {
     private PrintWriter ctlWriter;
     private BufferedReader ctlReader;
 
+    // binary framing replaces the reader and writer once negotiated
+    private boolean binary = false;
+    private DataInputStream ctlIn;
+    private DataOutputStream ctlOut;
+
+    // Pipelining
+    private ExecutorService metadata;
+    private List<Future<?>> inFlight = new ArrayList<Future<?>>();
+    private ThreadLocal<String> currentTag = new ThreadLocal<String>();
+    private ReentrantLock ctlLock = new ReentrantLock();
+
     private List<Long> drop = new ArrayList<Long>();
     private List<Long> timeout = new ArrayList<Long>();
     private List<Long> biterror = new ArrayList<Long>();
+    private SR.Emulator.Profile profile;
+    private int fec = SR.Sender.FEC_OFF;
+    private SR.ChunkSizer chunks = new SR.ChunkSizer();
 
     // Data Channel
-    private int dataPort;
+    private DataAcceptor acceptor;
+    private SR.DataChannel dataChannel;
+    private int transferId = 0;
+    private boolean compression = false;
+    private BandwidthManager bandwidth;
+    private BandwidthManager.Session shaper;
 
     // File System
     private String currentDir;
+    private DigestCache digests;
+    private DirectoryCache dirs;
+    private FileHandleCache handles;
+    private ObjectCache objects;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final SecureRandom random = new SecureRandom();
 
     private static final int SEQ_NO_SIZE = 1;
     private static final int CHK_SUM_SIZE = 2;
     private static final int SIZE_SIZE = 2;
     private static final int CHUNK_SIZE = 1000;
 
-    public Connection(Socket ctl, int dataPort) {
+    public Connection(Socket ctl, DataAcceptor acceptor, DigestCache digests, DirectoryCache dirs,
+            FileHandleCache handles, ObjectCache objects, BandwidthManager bandwidth, ExecutorService metadata) {
         ctlSocket = ctl;
 
-        this.dataPort = dataPort;
+        this.metadata = metadata;
+        this.acceptor = acceptor;
+        this.digests = digests;
+        this.dirs = dirs;
+        this.handles = handles;
+        this.objects = objects;
+
+        this.bandwidth = bandwidth;
+        shaper = bandwidth.register(ctl.getInetAddress().getHostAddress());
     }
 
     public void run() throws IOException {
@@ -160,6 +475,17 @@ class Connection {
             currentDir = System.getProperty("user.dir");
 
             while (true) {
+                if (binary) {
+                    Control.Message msg = Control.Message.read(ctlIn);
+
+                    if (msg == null) {
+                        break;
+                    }
+
+                    execute(msg);
+                    continue;
+                }
+
                 String line = ctlReader.readLine();
 
                 if (line == null) {
@@ -168,55 +494,143 @@ class Connection {
 
                 execute(line);
             }
-        } catch (SocketException e) {
+        } catch (SocketException | EOFException e) {
             System.err.println("<EXCEPTION> " + e.getMessage());
         } finally {
+                awaitInFlight();
+                shaper.close();
+
                 if (ctlWriter != null) ctlWriter.close();
                 if (ctlReader != null) ctlReader.close();
 
                 if (ctlSocket != null) ctlSocket.close();
+
+                if (dataChannel != null) dataChannel.close();
         }
     }
 
-    private void execute(String rcvMsg) {
-        if (rcvMsg.length() == 0)
+    // Binary frames name the command by opcode, so nothing is split, re-joined or upper-cased.
+    // Each field becomes one argument token as it was sent; LINE frames fall back to text parsing.
+    private void execute(Control.Message msg) {
+        if (msg.getCode() == Control.Opcode.LINE && msg.size() == 1) {
+            String line = msg.getString(0);
+
+            // tagged replies are a text protocol feature, frames are always answered in order.
+            if (line.startsWith("#")) {
+                sendResponse(new SyntaxErrResponse());
+                return;
+            }
+
+            execute(line);
             return;
+        }
+
+        final String verb = Control.Opcode.verb(msg.getCode());
 
-        String[] tokens = null;
+        if (verb == null) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
 
-        {
-            String[] tmp = rcvMsg.strip().split(" ");
+        String[] tokens = new String[msg.size() + 1];
+        tokens[0] = verb;
 
-            if (tmp.length == 1) {
-                tokens = new String[1];
+        for (int i = 0; i < msg.size(); ++i) {
+            tokens[i + 1] = msg.getString(i);
+        }
 
-                tokens[0] = tmp[0];
-            } else if (tmp.length > 1) {
-                tokens = new String[2];
+        System.out.println("Request: " + verb + " " + msg);
 
-                tokens[0] = tmp[0];
+        awaitInFlight();
+        runTagged(null, verb, tokens);
+    }
 
-                StringBuilder builder = new StringBuilder();
+    // A line may start with "#<tag> "; its response then starts with the same tag.
+    // Tagged metadata commands run concurrently and may be answered out of order,
+    // everything else waits for them and runs in order on the session thread.
+    private void execute(String rcvMsg) {
+        if (rcvMsg.length() == 0)
+            return;
 
-                for (int i = 1; i < tmp.length; ++i) {
-                    if (i != 1) {
-                        builder.append(' ');
-                    }
+        String tag = null;
+        String line = rcvMsg.strip();
 
-                    builder.append(tmp[i]);
-                }
+        if (line.startsWith("#")) {
+            int end = line.indexOf(' ');
 
-                tokens[1] = builder.toString();
+            if (end == -1) {
+                sendResponse(new SyntaxErrResponse());
+                return;
             }
+
+            tag = line.substring(1, end);
+            line = line.substring(end + 1).strip();
         }
 
-        if (tokens == null) {
+        String[] tokens = Control.Opcode.tokens(line);
+
+        System.out.println("Request: " + rcvMsg);
+
+        final String verb = tokens[0].toUpperCase();
+        final String[] args = tokens;
+
+        if (tag != null && isIndependent(verb, tokens)) {
+            final String t = tag;
+
+            inFlight.add(metadata.submit(() -> runTagged(t, verb, args)));
             return;
         }
 
-        System.out.println("Request: " + rcvMsg);
+        awaitInFlight();
+        runTagged(tag, verb, args);
+    }
 
-        switch (tokens[0].toUpperCase()) {
+    // read-only commands that do not depend on one another; CD only when it just reports the directory.
+    private static boolean isIndependent(String verb, String[] tokens) {
+        switch (verb) {
+            case "LIST":
+            case "STAT":
+            case "STATS":
+            case "HASH":
+                return true;
+
+            case "CD":
+                return tokens.length == 1;
+
+            default:
+                return false;
+        }
+    }
+
+    private void awaitInFlight() {
+        for (Future<?> future : inFlight) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("<EXCEPTION> " + e.getMessage());
+            }
+        }
+
+        inFlight.clear();
+    }
+
+    private void runTagged(String tag, String verb, String[] tokens) {
+        currentTag.set(tag);
+
+        try {
+            dispatch(verb, tokens);
+        } finally {
+            // a tagged response holds the control channel from its status line to its last entry line.
+            while (ctlLock.isHeldByCurrentThread()) {
+                ctlLock.unlock();
+            }
+
+            currentTag.remove();
+        }
+    }
+
+    private void dispatch(String verb, String[] tokens) {
+        switch (verb) {
             case "CD":
                 cmd_CD(tokens);
                 break;
@@ -225,6 +639,10 @@ class Connection {
                 cmd_LIST(tokens);
                 break;
 
+            case "PLIST":
+                cmd_PLIST(tokens);
+                break;
+
             case "GET":
                 cmd_GET(tokens);
                 break;
@@ -233,24 +651,98 @@ class Connection {
                 cmd_PUT(tokens);
                 break;
 
-            case "DROP":
-                cmd_DROP(tokens);
+            case "DATA":
+                cmd_DATA(tokens);
                 break;
 
-            case "TIMEOUT":
-                cmd_TIMEOUT(tokens);
+            case "BINARY":
+                cmd_BINARY(tokens);
                 break;
 
-            case "BITERROR":
-                cmd_BITERROR(tokens);
+            case "MGET":
+                cmd_MGET(tokens);
                 break;
 
-            default:
-                sendResponse(new SyntaxErrResponse());
+            case "MPUT":
+                cmd_MPUT(tokens);
+                break;
+
+            case "PACK":
+                cmd_PACK(tokens);
+                break;
+
+            case "HASH":
+                cmd_HASH(tokens);
+                break;
+
+            case "STAT":
+                cmd_STAT(tokens);
+                break;
+
+            case "STATS":
+                cmd_STATS(tokens);
+                break;
+
+            case "DPUT":
+                cmd_DPUT(tokens);
+                break;
+
+            case "MODE":
+                cmd_MODE(tokens);
+                break;
+
+            case "THROTTLE":
+                cmd_THROTTLE(tokens);
+                break;
+
+            case "EMULATE":
+                cmd_EMULATE(tokens);
+                break;
+
+            case "FEC":
+                cmd_FEC(tokens);
+                break;
+
+            case "DROP":
+                cmd_DROP(tokens);
+                break;
+
+            case "TIMEOUT":
+                cmd_TIMEOUT(tokens);
+                break;
+
+            case "BITERROR":
+                cmd_BITERROR(tokens);
+                break;
+
+            default:
+                sendResponse(new SyntaxErrResponse());
                 break;
         }
     }
 
+    // transfer ids tag every frame, so late frames of a finished transfer are told apart on the shared channel.
+    private int nextTransferId() {
+        transferId = transferId % 255 + 1;
+
+        return transferId;
+    }
+
+    private SR.Codec createCodec() {
+        return compression ? new SR.DeflateCodec() : null;
+    }
+
+    // every server-side Sender is paced by this session's share of the bandwidth.
+    private SR.Sender createSender(int transferId, SR.Codec codec) throws IOException {
+        SR.Sender sender = new SR.Sender(dataChannel, transferId, drop, timeout, biterror, codec);
+        sender.setRateLimiter(shaper);
+        sender.setProfile(profile);
+        sender.setFec(fec);
+        sender.setChunkSizer(chunks);
+
+        return sender;
+    }
+
     private String getAbsPath(String path) throws IOException {
         if (Path.of(path).isAbsolute()) {
             return path;
@@ -261,11 +753,72 @@ class Connection {
 
     private void sendResponse(Response resp) {
         String respMsg = resp.getResponseMessage();
+        String tag = currentTag.get();
+
+        if (tag != null) {
+            ctlLock.lock();
+
+            respMsg = "#" + tag + " " + respMsg;
+        }
 
         System.out.println("Response: " + respMsg);
+
+        if (binary) {
+            try {
+                new Control.Message(resp.getStatusCode(), resp.getFields()).write(ctlOut);
+                ctlOut.flush();
+            } catch (IOException e) {
+                System.err.println("<EXCEPTION> " + e.getMessage());
+            }
+            return;
+        }
+
         ctlWriter.println(respMsg);
     }
 
+    // a body line following a reply (listing entries, signature blocks); flushControl() sends them.
+    private void sendLine(String line) {
+        if (binary) {
+            try {
+                new Control.Message(Control.Opcode.LINE, line).write(ctlOut);
+            } catch (IOException e) {
+                System.err.println("<EXCEPTION> " + e.getMessage());
+            }
+            return;
+        }
+
+        ctlWriter.print(line);
+        ctlWriter.print('\n');
+    }
+
+    private void flushControl() {
+        if (binary) {
+            try {
+                ctlOut.flush();
+            } catch (IOException e) {
+                System.err.println("<EXCEPTION> " + e.getMessage());
+            }
+            return;
+        }
+
+        ctlWriter.flush();
+    }
+
+    // the length a client sends after PUT, MPUT and DPUT.
+    private long readLength() throws IOException {
+        if (binary) {
+            Control.Message msg = Control.Message.read(ctlIn);
+
+            if (msg == null || msg.getCode() != Control.Opcode.VALUE) {
+                throw new IOException("length expected");
+            }
+
+            return msg.getLong(0);
+        }
+
+        return Long.parseLong(ctlReader.readLine());
+    }
+
 
     private void cmd_CD(String[] tokens) {
         if (tokens.length == 1) { // no argument
@@ -314,25 +867,123 @@ class Connection {
             return;
         }
 
-        int count = 0;
-        StringBuilder builder = new StringBuilder();
-        for (File f : tmpFile.listFiles()) {
-            if (builder.length() > 0) {
-                builder.append('\n');
+        DirectoryCache.Entry[] entries;
+        try {
+            entries = dirs.list(tmpFile.toPath());
+        } catch (IOException e) {
+            sendResponse(new InvalidDirectoryResponse());
+            return;
+        }
+
+        sendResponse(new ListSuccessResponse(entries.length));
+
+        // entries are streamed through the writer's buffer and flushed once at the end.
+        for (DirectoryCache.Entry entry : entries) {
+            sendLine(entry.getLine());
+        }
+        flushControl();
+    }
+
+    // PLIST <cursor> <page size> <glob> <path>
+    // A page of the entries matching glob, resuming after cursor ("-" starts from the beginning).
+    // The cursor names the last entry sent, so pages stay consistent while the directory changes.
+    private void cmd_PLIST(String[] tokens) {
+        if (tokens.length != 5) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        int pageSize;
+        PathMatcher matcher;
+        String after = null;
+        try {
+            pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(tokens[2])));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + tokens[3]);
+
+            if (!tokens[1].equals("-")) {
+                after = new String(Base64.getUrlDecoder().decode(tokens[1]), StandardCharsets.UTF_8);
             }
+        } catch (IllegalArgumentException e) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
 
-            builder.append(f.getName() + ",");
-            if (f.isDirectory()) {
-                builder.append('-');
-            } else {
-                builder.append(f.length());
+        DirectoryCache.Entry[] entries;
+        try {
+            File tmpFile = new File(getAbsPath(tokens[4]));
+
+            if (!tmpFile.isDirectory()) {
+                sendResponse(new InvalidDirectoryResponse());
+                return;
+            }
+
+            entries = dirs.list(tmpFile.toPath());
+        } catch (IOException | InvalidPathException e) {
+            sendResponse(new InvalidDirectoryResponse());
+            return;
+        }
+
+        List<DirectoryCache.Entry> page = new ArrayList<DirectoryCache.Entry>();
+        int index = (after == null) ? 0 : DirectoryCache.indexAfter(entries, after);
+        for (; index < entries.length && page.size() < pageSize; ++index) {
+            if (matcher.matches(Path.of(entries[index].getName()))) {
+                page.add(entries[index]);
             }
+        }
 
-            ++count;
+        String cursor = "-";
+        if (index < entries.length && !page.isEmpty()) {
+            cursor = Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(page.get(page.size() - 1).getName().getBytes(StandardCharsets.UTF_8));
         }
-        sendResponse(new ListSuccessResponse(count));
 
-        ctlWriter.println(builder.toString());
+        sendResponse(new ListPageResponse(page.size(), cursor));
+
+        for (DirectoryCache.Entry entry : page) {
+            sendLine(entry.getLine());
+        }
+        flushControl();
+    }
+
+    // DATA opens the session's data channel: the client connects once to the shared data port
+    // and sends back the token, and every later transfer reuses that connection.
+    // "DATA TLS" runs a TLS handshake over the new channel right after the token.
+    private void cmd_DATA(String[] tokens) {
+        if (tokens.length > 2 || (tokens.length == 2 && !tokens[1].equalsIgnoreCase("TLS"))) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        final boolean secure = tokens.length == 2;
+
+        if (secure && System.getProperty("javax.net.ssl.keyStore") == null) {
+            sendResponse(new TlsUnavailableResponse());
+            return;
+        }
+
+        final long token = random.nextLong();
+        CompletableFuture<Socket> future = acceptor.expect(token);
+
+        sendResponse(new DataChannelResponse(token));
+
+        try {
+            Socket socket = acceptor.await(token, future);
+            SR.DataChannel channel;
+
+            try {
+                channel = secure ? SR.DataChannel.accept(socket) : new SR.DataChannel(socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+
+            System.out.println("Data channel: " + channel.describe());
+
+            if (dataChannel != null) dataChannel.close();
+            dataChannel = channel;
+        } catch (IOException e) {
+            System.err.println("<EXCEPTION> " + e.getMessage());
+        }
     }
 
     private void cmd_GET(String[] tokens) {
@@ -341,22 +992,42 @@ class Connection {
             return;
         }
 
-        ServerSocket dataChannel = null;
-        Socket dataSocket = null;
+        if (dataChannel == null) {
+            sendResponse(new NoDataChannelResponse());
+            return;
+        }
 
+        FileHandleCache.Handle handle = null;
         try {
-            dataChannel = new ServerSocket(dataPort);
-            dataSocket = dataChannel.accept();
+            String path = getAbsPath(tokens[1]);
+
+            // small hot files are served from memory, already split (and deflated) into payloads.
+            ObjectCache.Cached cached = objects.get(path, compression);
+            if (cached != null) {
+                final int transferId = nextTransferId();
+                sendResponse(new GetSuccessResponse(cached.getSize(), transferId));
+
+                SR.Sender sender = createSender(transferId, null);
+                sender.send(cached.getPayloads());
+
+                drop.clear();
+                timeout.clear();
+                biterror.clear();
+                return;
+            }
 
-            String tmpDir = getAbsPath(tokens[1]);
-            FileInputStream inp = new FileInputStream(tmpDir);
-            File file = new File(tmpDir);
+            // the cached handle already knows the size, and an unchanged hot file is not reopened.
+            handle = handles.acquire(path);
 
-            final long length = file.length();
-            sendResponse(new GetSuccessResponse(file));
+            final long length = handle.getSize();
+            final int transferId = nextTransferId();
+            sendResponse(new GetSuccessResponse(length, transferId));
 
-            SR.Sender sender = new SR.Sender(dataSocket, drop, timeout, biterror);
-            sender.send(inp, length);
+            SR.Codec codec = createCodec();
+            SR.Sender sender = createSender(transferId, codec);
+            sender.send(handle.openStream(), length);
+
+            if (codec != null) codec.close();
 
             drop.clear();
             timeout.clear();
@@ -366,12 +1037,7 @@ class Connection {
         } catch (Exception e) {
             sendResponse(new UnknownErrResponse());
         } finally {
-            try {
-                if (dataSocket != null) dataSocket.close();
-                if (dataChannel != null) dataChannel.close();
-            } catch (Exception e) {
-                sendResponse(new UnknownErrResponse());
-            }
+            if (handle != null) handle.release();
         }
     }
 
@@ -381,37 +1047,424 @@ class Connection {
             return;
         }
 
-        ServerSocket dataChannel = null;
-        Socket dataSocket = null;
+        if (dataChannel == null) {
+            sendResponse(new NoDataChannelResponse());
+            return;
+        }
 
         try {
-            dataChannel = new ServerSocket(dataPort);
-            dataSocket = dataChannel.accept();
+            final long totalLength = readLength();
 
-            final long totalLength = Long.parseLong(ctlReader.readLine());
-
-            sendResponse(new ReadyToReceiveResponse());
+            final int transferId = nextTransferId();
+            sendResponse(new ReadyToReceiveResponse(transferId));
 
             final String filename = Path.of(tokens[1]).getFileName().toString();
 
             FileOutputStream oup = new FileOutputStream(currentDir + "/" + filename);
 
-            SR.Receiver receiver = new SR.Receiver(dataSocket);
+            SR.Codec codec = createCodec();
+            SR.Receiver receiver = new SR.Receiver(dataChannel, transferId, codec);
             receiver.recv(oup, totalLength);
 
+            if (codec != null) codec.close();
+
             if (oup != null) oup.close();
+
+            dirs.touch(Path.of(currentDir, filename));
+        } catch (Exception e) {
+            sendResponse(new UnknownErrResponse());
+        }
+    }
+
+    // MGET/MPUT move a whole directory tree as one framed stream over a single SR transfer,
+    // so there is one control round-trip and one data connection per tree instead of per file.
+    private void cmd_MGET(String[] tokens) {
+        if (tokens.length != 2) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        if (dataChannel == null) {
+            sendResponse(new NoDataChannelResponse());
+            return;
+        }
+
+        try {
+            File root = new File(getAbsPath(tokens[1]));
+            if (!root.isDirectory()) {
+                sendResponse(new InvalidDirectoryResponse());
+                return;
+            }
+
+            Batch.Manifest manifest = Batch.Manifest.of(root);
+            final int transferId = nextTransferId();
+            sendResponse(new BatchSuccessResponse(manifest, manifest.getStreamLength(), transferId));
+
+            Batch.FileQueueInputStream inp = new Batch.FileQueueInputStream(manifest);
+
+            SR.Codec codec = createCodec();
+            SR.Sender sender = createSender(transferId, codec);
+            sender.send(inp, manifest.getStreamLength());
+
+            if (codec != null) codec.close();
+            inp.close();
+
+            drop.clear();
+            timeout.clear();
+            biterror.clear();
+        } catch (Exception e) {
+            sendResponse(new UnknownErrResponse());
+        }
+    }
+
+    // PACK <glob> <path>: every file under path whose relative path matches glob, packed into one
+    // indexed stream. Meant for large sets of small files that would each leave packets mostly empty.
+    private void cmd_PACK(String[] tokens) {
+        if (tokens.length != 3) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        PathMatcher matcher;
+        try {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + tokens[1]);
+        } catch (IllegalArgumentException e) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        if (dataChannel == null) {
+            sendResponse(new NoDataChannelResponse());
+            return;
+        }
+
+        try {
+            File root = new File(getAbsPath(tokens[2]));
+            if (!root.isDirectory()) {
+                sendResponse(new InvalidDirectoryResponse());
+                return;
+            }
+
+            Batch.Manifest manifest = Batch.Manifest.of(root, matcher);
+            final int transferId = nextTransferId();
+            sendResponse(new BatchSuccessResponse(manifest, manifest.getPackLength(), transferId));
+
+            Batch.PackInputStream inp = new Batch.PackInputStream(manifest);
+
+            SR.Codec codec = createCodec();
+            SR.Sender sender = createSender(transferId, codec);
+            sender.send(inp, manifest.getPackLength());
+
+            if (codec != null) codec.close();
+            inp.close();
+
+            drop.clear();
+            timeout.clear();
+            biterror.clear();
+        } catch (Exception e) {
+            sendResponse(new UnknownErrResponse());
+        }
+    }
+
+    private void cmd_MPUT(String[] tokens) {
+        if (tokens.length != 2) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        if (dataChannel == null) {
+            sendResponse(new NoDataChannelResponse());
+            return;
+        }
+
+        try {
+            final long totalLength = readLength();
+
+            final int transferId = nextTransferId();
+            sendResponse(new ReadyToReceiveResponse(transferId));
+
+            final String dirname = Path.of(tokens[1]).getFileName().toString();
+
+            Batch.FileQueueOutputStream oup = new Batch.FileQueueOutputStream(Path.of(currentDir, dirname));
+
+            SR.Codec codec = createCodec();
+            try {
+                SR.Receiver receiver = new SR.Receiver(dataChannel, transferId, codec);
+                receiver.recv(oup, totalLength);
+
+                oup.close();
+            } catch (IOException e) {
+                // the file it was writing is incomplete
+                oup.abort();
+                throw e;
+            } finally {
+                if (codec != null) codec.close();
+            }
+
+            dirs.touch(Path.of(currentDir, dirname));
+        } catch (Exception e) {
+            sendResponse(new UnknownErrResponse());
+        }
+    }
+
+    private void cmd_HASH(String[] tokens) {
+        if (tokens.length != 2) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        try {
+            File file = new File(getAbsPath(tokens[1]));
+
+            if (!file.isFile()) {
+                sendResponse(new FileNotFoundResponse());
+                return;
+            }
+
+            sendResponse(new DigestResponse(digests.get(file)));
+        } catch (IOException e) {
+            sendResponse(new UnknownErrResponse());
+        }
+    }
+
+    // BINARY: both ends switch to Control.Message frames after this reply.
+    // The client waits for it before sending a frame, so no frame can be stuck in ctlReader's buffer.
+    private void cmd_BINARY(String[] tokens) {
+        if (tokens.length != 1 || binary || currentTag.get() != null) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        try {
+            ctlIn = new DataInputStream(new BufferedInputStream(ctlSocket.getInputStream()));
+            ctlOut = new DataOutputStream(new BufferedOutputStream(ctlSocket.getOutputStream()));
+        } catch (IOException e) {
+            sendResponse(new UnknownErrResponse());
+            return;
+        }
+
+        sendResponse(new BinaryControlResponse());
+        binary = true;
+    }
+
+    // THROTTLE [GLOBAL|USER|SESSION <bytes per second> | WEIGHT <weight>]
+    // USER applies to every session from this client's address; 0 lifts a limit.
+    // GLOBAL and USER are the operator's, and refused unless the server lets clients set them.
+    private void cmd_THROTTLE(String[] tokens) {
+        if (tokens.length == 1) {
+            sendResponse(new ThrottleResponse(bandwidth.describe(shaper)));
+            return;
+        }
+
+        long value;
+        try {
+            value = (tokens.length == 3) ? Long.parseLong(tokens[2]) : -1;
+        } catch (NumberFormatException e) {
+            value = -1;
+        }
+
+        if (value < 0) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        switch (tokens[1].toUpperCase()) {
+            case "GLOBAL":
+                if (!bandwidth.isRemote()) {
+                    sendResponse(new NotPermittedResponse());
+                    return;
+                }
+
+                bandwidth.setGlobalLimit(value);
+                break;
+
+            case "USER":
+                if (!bandwidth.isRemote()) {
+                    sendResponse(new NotPermittedResponse());
+                    return;
+                }
+
+                bandwidth.setUserLimit(shaper.getUser(), value);
+                break;
+
+            case "SESSION":
+                bandwidth.setSessionLimit(shaper, value);
+                break;
+
+            case "WEIGHT":
+                if (value < 1 || value > 1000) {
+                    sendResponse(new SyntaxErrResponse());
+                    return;
+                }
+
+                bandwidth.setWeight(shaper, (int) value);
+                break;
+
+            default:
+                sendResponse(new SyntaxErrResponse());
+                return;
+        }
+
+        sendResponse(new ThrottleResponse(bandwidth.describe(shaper)));
+    }
+
+    // EMULATE [OFF | <impairment>=<value> ...]: network impairments for the frames this session sends.
+    private void cmd_EMULATE(String[] tokens) {
+        if (tokens.length >= 2) {
+            try {
+                profile = (tokens.length == 2 && tokens[1].equalsIgnoreCase("OFF"))
+                        ? null : SR.Emulator.Profile.parse(Arrays.copyOfRange(tokens, 1, tokens.length));
+            } catch (IllegalArgumentException e) {
+                sendResponse(new SyntaxErrResponse());
+                return;
+            }
+        }
+
+        sendResponse(new EmulationResponse(profile));
+    }
+
+    // FEC [OFF | AUTO | <group size>]: parity frames on the data this session sends.
+    private void cmd_FEC(String[] tokens) {
+        if (tokens.length == 2) {
+            try {
+                fec = SR.Sender.parseFec(tokens[1].trim());
+            } catch (IllegalArgumentException e) {
+                sendResponse(new SyntaxErrResponse());
+                return;
+            }
+        }
+
+        sendResponse(new FecResponse(fec));
+    }
+
+    private void cmd_STATS(String[] tokens) {
+        if (tokens.length != 1) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        sendResponse(new CacheStatsResponse(objects.getStats()));
+    }
+
+    // STAT <path>: name, size ("-" for directories) and modification time in one line.
+    private void cmd_STAT(String[] tokens) {
+        if (tokens.length != 2) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        try {
+            File file = new File(getAbsPath(tokens[1]));
+
+            if (!file.exists()) {
+                sendResponse(new FileNotFoundResponse());
+                return;
+            }
+
+            sendResponse(new StatResponse(file));
+        } catch (IOException e) {
+            sendResponse(new UnknownErrResponse());
+        }
+    }
+
+    // Delta PUT: the client gets block signatures of our copy and sends back
+    // only what changed, as COPY/LITERAL instructions the file is rebuilt from.
+    private void cmd_DPUT(String[] tokens) {
+        if (tokens.length != 2) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        if (dataChannel == null) {
+            sendResponse(new NoDataChannelResponse());
+            return;
+        }
+
+        final String filename = Path.of(tokens[1]).getFileName().toString();
+        File target = new File(currentDir + "/" + filename);
+
+        Delta.Signature signature;
+        try {
+            signature = Delta.Signature.of(target);
+        } catch (IOException e) {
+            sendResponse(new UnknownErrResponse());
+            return;
+        }
+
+        sendResponse(new SignatureResponse(signature));
+        for (Delta.Signature.Block block : signature.getBlocks()) {
+            sendLine(block.toString());
+        }
+        flushControl();
+
+        RandomAccessFile base = null;
+        File rebuilt = null;
+
+        try {
+            final long totalLength = readLength();
+
+            final int transferId = nextTransferId();
+            sendResponse(new ReadyToReceiveResponse(transferId));
+
+            if (target.isFile()) {
+                base = new RandomAccessFile(target, "r");
+            }
+
+            rebuilt = new File(currentDir + "/." + filename + ".delta");
+            Delta.Decoder oup = new Delta.Decoder(base, signature.getBlockSize(), new BufferedOutputStream(new FileOutputStream(rebuilt)));
+
+            SR.Codec codec = createCodec();
+            SR.Receiver receiver = new SR.Receiver(dataChannel, transferId, codec);
+            receiver.recv(oup, totalLength);
+
+            if (codec != null) codec.close();
+
+            oup.close();
+            if (base != null) {
+                base.close();
+                base = null;
+            }
+
+            Files.move(rebuilt.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            rebuilt = null;
+
+            dirs.touch(target.toPath());
         } catch (Exception e) {
             sendResponse(new UnknownErrResponse());
         } finally {
             try {
-                if (dataSocket != null) dataSocket.close();
-                if (dataChannel != null) dataChannel.close();
+                if (base != null) base.close();
+                if (rebuilt != null) rebuilt.delete();
             } catch (Exception e) {
                 sendResponse(new UnknownErrResponse());
             }
         }
     }
 
+    // MODE S: plain stream, MODE Z: every chunk is deflated unless it does not shrink.
+    private void cmd_MODE(String[] tokens) {
+        if (tokens.length != 2) {
+            sendResponse(new SyntaxErrResponse());
+            return;
+        }
+
+        switch (tokens[1].toUpperCase()) {
+            case "S":
+                compression = false;
+                break;
+
+            case "Z":
+                compression = true;
+                break;
+
+            default:
+                sendResponse(new SyntaxErrResponse());
+                return;
+        }
+
+        sendResponse(new ModeResponse(tokens[1].toUpperCase()));
+    }
+
     // DROP, TIMEOUT, BITERROR command must be sent by program.
     // So, we don't need to check syntax error.
     private void cmd_DROP(String[] tokens) {
@@ -434,19 +1487,44 @@ class Connection {
 }
 
 class FTPServer {
+    private static final int DIGEST_CACHE_SIZE = 4096;
+    private static final int DIRECTORY_CACHE_SIZE = 256;
+    private static final int FILE_HANDLE_CACHE_SIZE = 64;
+    private static final int METADATA_THREADS = 8;
+
     private ServerSocket ctlSocket;
+    private DataAcceptor acceptor;
     private boolean isRunning;
 
+    private DigestCache digests = new DigestCache(DIGEST_CACHE_SIZE);
+    private DirectoryCache dirs;
+    private FileHandleCache handles = new FileHandleCache(FILE_HANDLE_CACHE_SIZE);
+    private ObjectCache objects = new ObjectCache(Long.getLong(ObjectCache.BUDGET_PROPERTY, ObjectCache.DEFAULT_BUDGET));
+    private BandwidthManager bandwidth = new BandwidthManager(Long.getLong(BandwidthManager.GLOBAL_PROPERTY, 0),
+            Long.getLong(BandwidthManager.USER_PROPERTY, 0), Long.getLong(BandwidthManager.SESSION_PROPERTY, 0),
+            Boolean.getBoolean(BandwidthManager.REMOTE_PROPERTY));
+    private ExecutorService metadata = SR.Threads.newExecutor("metadata", METADATA_THREADS);
+
     public FTPServer(int ctlPort, int dataPort) throws IOException {
         ctlSocket = new ServerSocket(ctlPort);
+        acceptor = new DataAcceptor(dataPort);
+        dirs = new DirectoryCache(DIRECTORY_CACHE_SIZE);
 
         isRunning = true;
         while (isRunning) {
             Socket ctlClientSocket = ctlSocket.accept();
 
-            Connection conn = new Connection(ctlClientSocket, dataPort);
+            // sessions no longer compete for the data port, so each one runs on its own thread,
+            // a virtual one with -Dftp.threads=virtual.
+            Connection conn = new Connection(ctlClientSocket, acceptor, digests, dirs, handles, objects, bandwidth, metadata);
 
-            conn.run();
+            SR.Threads.start("session", () -> {
+                try {
+                    conn.run();
+                } catch (IOException e) {
+                    System.err.println("<EXCEPTION> " + e.getMessage());
+                }
+            });
         }
 
         if (ctlSocket != null) {
@@ -0,0 +1,179 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Open read-only channels of served files with their size, keyed by path and validated by mtime and size.
+// A hot file costs one stat per GET instead of an open, a close and repeated length lookups.
+// Concurrent readers share one channel through positional reads; a channel is closed once it has
+// been evicted or replaced and its last reader released it.
+class FileHandleCache {
+    public class Handle {
+        private String key;
+        private FileChannel channel;
+        private long mtime;
+        private long size;
+
+        private int refs = 0;
+        private boolean retired = false;
+
+        private Handle(String key, FileChannel channel, long mtime, long size) {
+            this.key = key;
+            this.channel = channel;
+            this.mtime = mtime;
+            this.size = size;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        // a stream of its own over the shared channel, starting at position 0.
+        public InputStream openStream() {
+            return new ChannelInputStream(channel, size);
+        }
+
+        public void release() {
+            FileHandleCache.this.release(this);
+        }
+    }
+
+    private static class ChannelInputStream extends InputStream {
+        private FileChannel channel;
+        private long position = 0;
+        private long end;
+
+        public ChannelInputStream(FileChannel channel, long end) {
+            this.channel = channel;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+
+            return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+
+            ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int read = channel.read(buf, position);
+
+            if (read == -1) {
+                return -1;
+            }
+
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
+    private Map<String, Handle> handles;
+
+    public FileHandleCache(final int capacity) {
+        handles = new LinkedHashMap<String, Handle>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Handle> eldest) {
+                if (size() > capacity) {
+                    retire(eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    // a referenced handle of a regular file; every acquire must be paired with a release.
+    public Handle acquire(String path) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(path);
+        }
+
+        if (!attrs.isRegularFile()) {
+            throw new FileNotFoundException(path);
+        }
+
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        final long size = attrs.size();
+
+        synchronized (this) {
+            Handle handle = handles.get(path);
+
+            if (handle != null && handle.mtime == mtime && handle.size == size) {
+                ++handle.refs;
+                return handle;
+            }
+        }
+
+        FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ);
+
+        synchronized (this) {
+            Handle handle = handles.get(path);
+
+            // another reader opened the same version meanwhile
+            if (handle != null && handle.mtime == mtime && handle.size == size) {
+                channel.close();
+
+                ++handle.refs;
+                return handle;
+            }
+
+            if (handle != null) {
+                handles.remove(path);
+                retire(handle);
+            }
+
+            handle = new Handle(path, channel, mtime, size);
+            handle.refs = 1;
+            handles.put(path, handle);
+
+            return handle;
+        }
+    }
+
+    private synchronized void release(Handle handle) {
+        --handle.refs;
+
+        if (handle.retired && handle.refs == 0) {
+            close(handle);
+        }
+    }
+
+    private void retire(Handle handle) {
+        handle.retired = true;
+
+        if (handle.refs == 0) {
+            close(handle);
+        }
+    }
+
+    private static void close(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            System.err.println("<EXCEPTION> " + handle.key + " cannot be closed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Contents of small, frequently fetched files, split into ready-to-send SR.Payloads and validated by mtime and size.
+// Segmented LRU within a byte budget: new objects start on probation and move to the protected segment
+// on their second hit, so a burst of one-off GETs cannot push out the files that are fetched over and over.
+class ObjectCache {
+    public static final String BUDGET_PROPERTY = "ftp.object.cache.bytes";
+    public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    // share of the budget the protected segment may hold; a single object may take 1/MAX_OBJECT_SHARE of it.
+    private static final double PROTECTED_SHARE = 0.8;
+    private static final int MAX_OBJECT_SHARE = 64;
+
+    // what a GET needs: the raw length to announce and the payloads to send.
+    public static class Cached {
+        private long size;
+        private List<SR.Payload> payloads;
+
+        private Cached(long size, List<SR.Payload> payloads) {
+            this.size = size;
+            this.payloads = payloads;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public List<SR.Payload> getPayloads() {
+            return payloads;
+        }
+    }
+
+    private static class Item {
+        private long mtime;
+        private long size;
+        private List<SR.Payload> raw;
+        private List<SR.Payload> deflated;
+
+        private Item(long mtime, long size, List<SR.Payload> raw) {
+            this.mtime = mtime;
+            this.size = size;
+            this.raw = raw;
+        }
+
+        private long getBytes() {
+            long bytes = size;
+
+            if (deflated != null) {
+                for (SR.Payload payload : deflated) {
+                    if (payload.isCompressed()) {
+                        bytes += payload.getLength();
+                    }
+                }
+            }
+
+            return bytes;
+        }
+    }
+
+    private long budget;
+    private long maxObjectSize;
+
+    private LinkedHashMap<String, Item> probation = new LinkedHashMap<String, Item>(16, 0.75f, true);
+    private LinkedHashMap<String, Item> protect = new LinkedHashMap<String, Item>(16, 0.75f, true);
+    private long probationBytes = 0;
+    private long protectBytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long bypasses = 0;
+    private long evictions = 0;
+
+    public ObjectCache(long budget) {
+        this.budget = budget;
+        this.maxObjectSize = budget / MAX_OBJECT_SHARE;
+    }
+
+    // Payloads of the file, deflated when compressed is set, or null if it is too large to be cached
+    // or changing under us. The caller then streams the file as usual.
+    public Cached get(String path, boolean compressed) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(path);
+        }
+
+        if (!attrs.isRegularFile()) {
+            throw new FileNotFoundException(path);
+        }
+
+        final long mtime = attrs.lastModifiedTime().toMillis();
+        final long size = attrs.size();
+
+        if (size > maxObjectSize) {
+            synchronized (this) {
+                ++bypasses;
+            }
+            return null;
+        }
+
+        Item item;
+
+        synchronized (this) {
+            item = lookup(path);
+
+            if (item != null && (item.mtime != mtime || item.size != size)) {
+                remove(path);
+                item = null;
+            }
+
+            if (item != null) {
+                ++hits;
+            } else {
+                ++misses;
+            }
+        }
+
+        if (item == null) {
+            byte[] content = Files.readAllBytes(Path.of(path));
+
+            // the file changed while it was read; the caller streams it instead.
+            BasicFileAttributes after = Files.readAttributes(Path.of(path), BasicFileAttributes.class);
+            if (content.length != size || after.lastModifiedTime().toMillis() != mtime || after.size() != size) {
+                return null;
+            }
+
+            item = new Item(mtime, size, split(content));
+
+            synchronized (this) {
+                remove(path);
+                probation.put(path, item);
+                probationBytes += item.getBytes();
+
+                evict();
+            }
+        }
+
+        if (!compressed) {
+            return new Cached(size, item.raw);
+        }
+
+        List<SR.Payload> deflated;
+        synchronized (this) {
+            deflated = item.deflated;
+        }
+
+        if (deflated == null) {
+            deflated = deflate(item.raw);
+
+            synchronized (this) {
+                if (item.deflated == null && (probation.get(path) == item || protect.get(path) == item)) {
+                    final long before = item.getBytes();
+                    item.deflated = deflated;
+                    account(path, item.getBytes() - before);
+
+                    evict();
+                }
+            }
+        }
+
+        return new Cached(size, deflated);
+    }
+
+    public synchronized String getStats() {
+        final long lookups = hits + misses;
+        final long ratio = (lookups == 0) ? 0 : hits * 100 / lookups;
+
+        return hits + " hits, " + misses + " misses (" + ratio + "% hit ratio), " + bypasses + " bypassed, "
+                + evictions + " evicted, " + (probation.size() + protect.size()) + " objects in "
+                + (probationBytes + protectBytes) + " of " + budget + " bytes";
+    }
+
+    // a hit on probation promotes the object; the protected segment overflows back into probation.
+    private Item lookup(String path) {
+        Item item = protect.get(path);
+        if (item != null) {
+            return item;
+        }
+
+        item = probation.remove(path);
+        if (item == null) {
+            return null;
+        }
+
+        probationBytes -= item.getBytes();
+        protect.put(path, item);
+        protectBytes += item.getBytes();
+
+        final long protectBudget = (long) (budget * PROTECTED_SHARE);
+        Iterator<Map.Entry<String, Item>> it = protect.entrySet().iterator();
+
+        while (protectBytes > protectBudget && it.hasNext()) {
+            Map.Entry<String, Item> eldest = it.next();
+            it.remove();
+
+            protectBytes -= eldest.getValue().getBytes();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().getBytes();
+        }
+
+        return item;
+    }
+
+    private void account(String path, long delta) {
+        if (protect.containsKey(path)) {
+            protectBytes += delta;
+        } else {
+            probationBytes += delta;
+        }
+    }
+
+    private void remove(String path) {
+        Item item = probation.remove(path);
+        if (item != null) {
+            probationBytes -= item.getBytes();
+        }
+
+        item = protect.remove(path);
+        if (item != null) {
+            protectBytes -= item.getBytes();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Item>> it = probation.entrySet().iterator();
+
+        while (probationBytes + protectBytes > budget && it.hasNext()) {
+            probationBytes -= it.next().getValue().getBytes();
+            it.remove();
+            ++evictions;
+        }
+
+        it = protect.entrySet().iterator();
+
+        while (probationBytes + protectBytes > budget && it.hasNext()) {
+            protectBytes -= it.next().getValue().getBytes();
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    private static List<SR.Payload> split(byte[] content) {
+        final int count = (int) SR.Payload.chunkCount(content.length);
+        List<SR.Payload> payloads = new ArrayList<SR.Payload>(count);
+
+        for (int i = 0; i < count; ++i) {
+            final int from = i * SR.Consts.CHUNK_SIZE;
+            final int to = Math.min(content.length, from + SR.Consts.CHUNK_SIZE);
+
+            payloads.add(new SR.Payload(Arrays.copyOfRange(content, from, to), false));
+        }
+
+        return Collections.unmodifiableList(payloads);
+    }
+
+    // chunks that do not shrink stay raw, exactly as the Sender's own codec path would send them.
+    private static List<SR.Payload> deflate(List<SR.Payload> raw) {
+        SR.DeflateCodec codec = new SR.DeflateCodec();
+        byte[] encoded = new byte[SR.Consts.CHUNK_SIZE];
+
+        List<SR.Payload> payloads = new ArrayList<SR.Payload>(raw.size());
+        try {
+            for (SR.Payload payload : raw) {
+                final int encodedSize = codec.encode(payload.getData(), payload.getLength(), encoded);
+
+                if (encodedSize == -1) {
+                    payloads.add(payload);
+                } else {
+                    payloads.add(new SR.Payload(Arrays.copyOf(encoded, encodedSize), true));
+                }
+            }
+        } finally {
+            codec.close();
+        }
+
+        return Collections.unmodifiableList(payloads);
+    }
+}
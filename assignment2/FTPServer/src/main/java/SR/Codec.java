@@ -0,0 +1,15 @@
+package SR;
+
+import java.io.IOException;
+
+// Per-chunk payload transformation applied inside the SR pipeline.
+// Every chunk is coded on its own, so retransmitted or reordered frames can always be decoded.
+public interface Codec {
+    // returns the encoded length, or -1 if the chunk does not shrink and must be sent as is.
+    int encode(byte[] src, int length, byte[] dst);
+
+    // returns the decoded length. dst must hold at least the transfer's chunk size.
+    int decode(byte[] src, int length, byte[] dst) throws IOException;
+
+    void close();
+}
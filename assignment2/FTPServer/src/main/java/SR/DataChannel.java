@@ -0,0 +1,385 @@
+package SR;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+// The data socket of a session, plaintext or encrypted with TLS. Senders and Receivers only see its
+// streams, so framing, acks and the Emulator work the same either way.
+// Encryption runs on an SSLEngine rather than an SSLSocket: a frame is sealed straight from the
+// caller's array into a pooled buffer and goes out in a single write, all records of it together.
+// Keys and trust come from the standard javax.net.ssl.* properties. The client names the server's
+// host and port, so a later data channel to the same server resumes the TLS session.
+public class DataChannel {
+    public static final String TLS_PROPERTY = "ftp.data.tls";
+
+    private static final int HANDSHAKE_TIMEOUT = 10000;
+    // most plaintext one TLS record carries
+    private static final int MAX_RECORD = 16384;
+
+    // Buffers for sealed records, borrowed for one write and returned, so idle sessions hold none.
+    // Heap rather than direct: the data sockets are stream sockets and take arrays.
+    private static class BufferPool {
+        private ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        public ByteBuffer acquire(int capacity) {
+            ByteBuffer buffer = free.poll();
+
+            if (buffer == null || buffer.capacity() < capacity) {
+                return ByteBuffer.allocate(capacity);
+            }
+
+            buffer.clear();
+            return buffer;
+        }
+
+        public void release(ByteBuffer buffer) {
+            free.offer(buffer);
+        }
+    }
+
+    private static final BufferPool pool = new BufferPool();
+
+    private Socket socket;
+    private InputStream inStream;
+    private OutputStream outStream;
+    private SSLEngine engine;
+    private SecureStreams streams;
+    private FrameWriter frames;
+    private boolean resumed = false;
+
+    public DataChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        this.inStream = socket.getInputStream();
+        this.outStream = socket.getOutputStream();
+        this.frames = new FrameWriter(outStream);
+    }
+
+    private DataChannel(Socket socket, SSLEngine engine) throws IOException {
+        this.socket = socket;
+        this.engine = engine;
+
+        this.streams = new SecureStreams(socket.getInputStream(), socket.getOutputStream());
+        this.inStream = streams.in;
+        this.outStream = streams.out;
+        this.frames = new FrameWriter(outStream);
+    }
+
+    public static SSLContext context() throws IOException {
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("TLS is not available: " + e.getMessage());
+        }
+    }
+
+    // the client side of a secure channel to host:port, which a later channel to the same server resumes.
+    public static DataChannel connect(Socket socket, String host, int port) throws IOException {
+        SSLEngine engine = context().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+
+        return handshake(socket, engine);
+    }
+
+    public static DataChannel accept(Socket socket) throws IOException {
+        SSLEngine engine = context().createSSLEngine();
+        engine.setUseClientMode(false);
+
+        return handshake(socket, engine);
+    }
+
+    private static DataChannel handshake(Socket socket, SSLEngine engine) throws IOException {
+        final long start = System.currentTimeMillis();
+
+        DataChannel channel = new DataChannel(socket, engine);
+
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+        try {
+            channel.streams.handshake();
+        } finally {
+            socket.setSoTimeout(0);
+        }
+
+        // a resumed session keeps the creation time of the one it resumes
+        channel.resumed = engine.getSession().getCreationTime() < start;
+
+        return channel;
+    }
+
+    public InputStream getInputStream() {
+        return inStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outStream;
+    }
+
+    // every frame of this channel's transfers goes out through here
+    public FrameWriter getFrameWriter() {
+        return frames;
+    }
+
+    public boolean isSecure() {
+        return engine != null;
+    }
+
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public String describe() {
+        if (engine == null) {
+            return "plaintext";
+        }
+
+        SSLSession session = engine.getSession();
+        return session.getProtocol() + " " + session.getCipherSuite() + (resumed ? ", resumed" : "");
+    }
+
+    public void close() throws IOException {
+        frames.close();
+
+        if (engine != null) {
+            engine.closeOutbound();
+
+            try {
+                streams.flushClose();
+            } catch (IOException ignored) {
+                // the peer may be gone already
+            }
+        }
+
+        socket.close();
+    }
+
+    // Both directions of one SSLEngine over the socket streams. Writes are serialized, as wrap has to be;
+    // reads come from one thread at a time, the one running the transfer.
+    private class SecureStreams {
+        private InputStream rawIn;
+        private OutputStream rawOut;
+
+        private ReentrantLock wrapLock = new ReentrantLock();
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+
+        private In in = new In();
+        private Out out = new Out();
+
+        public SecureStreams(InputStream rawIn, OutputStream rawOut) {
+            this.rawIn = rawIn;
+            this.rawOut = rawOut;
+
+            SSLSession session = engine.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            appIn.flip();
+        }
+
+        public void handshake() throws IOException {
+            engine.beginHandshake();
+
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED
+                    && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_WRAP:
+                        status = seal(ByteBuffer.allocate(0));
+                        break;
+
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        status = unseal();
+                        if (status == null) {
+                            throw new EOFException("data channel closed during the TLS handshake");
+                        }
+                        break;
+
+                    case NEED_TASK:
+                        status = runTasks();
+                        break;
+
+                    default:
+                        throw new SSLException("unexpected handshake status " + status);
+                }
+            }
+        }
+
+        public void flushClose() throws IOException {
+            seal(ByteBuffer.allocate(0));
+        }
+
+        // Encrypts everything in src and writes the records with one write; returns the engine's handshake status.
+        private SSLEngineResult.HandshakeStatus seal(ByteBuffer src) throws IOException {
+            final int records = src.remaining() / MAX_RECORD + 1;
+
+            wrapLock.lock();
+            ByteBuffer net = pool.acquire(records * engine.getSession().getPacketBufferSize());
+            try {
+                SSLEngineResult result;
+
+                do {
+                    result = engine.wrap(src, net);
+
+                    switch (result.getStatus()) {
+                        case BUFFER_OVERFLOW:
+                            rawOut.write(net.array(), 0, net.position());
+                            net.clear();
+                            break;
+
+                        case CLOSED:
+                            if (net.position() != 0) {
+                                rawOut.write(net.array(), 0, net.position());
+                            }
+                            if (src.hasRemaining()) {
+                                throw new EOFException("data channel is closed");
+                            }
+                            return result.getHandshakeStatus();
+
+                        default:
+                            break;
+                    }
+                } while (src.hasRemaining() || result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW);
+
+                rawOut.write(net.array(), 0, net.position());
+                rawOut.flush();
+
+                return result.getHandshakeStatus();
+            } finally {
+                pool.release(net);
+                wrapLock.unlock();
+            }
+        }
+
+        // Decrypts the next record into appIn, reading from the socket as needed.
+        // Returns null at the end of the stream.
+        private SSLEngineResult.HandshakeStatus unseal() throws IOException {
+            while (true) {
+                netIn.flip();
+                appIn.compact();
+
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    appIn.flip();
+                    netIn.compact();
+                }
+
+                switch (result.getStatus()) {
+                    case OK:
+                        return result.getHandshakeStatus();
+
+                    case CLOSED:
+                        return null;
+
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining()) {
+                            ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() * 2);
+                            netIn.flip();
+                            larger.put(netIn);
+                            netIn = larger;
+                        }
+
+                        final int read = rawIn.read(netIn.array(), netIn.position(), netIn.remaining());
+                        if (read == -1) {
+                            return null;
+                        }
+                        netIn.position(netIn.position() + read);
+                        break;
+
+                    case BUFFER_OVERFLOW:
+                        ByteBuffer larger = ByteBuffer.allocate(appIn.capacity() * 2);
+                        larger.put(appIn);
+                        larger.flip();
+                        appIn = larger;
+                        break;
+                }
+            }
+        }
+
+        private SSLEngineResult.HandshakeStatus runTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+
+            return engine.getHandshakeStatus();
+        }
+
+        // Unseals until there is application data, answering what the engine asks for on the way
+        // (session tickets, key updates). Returns false at the end of the stream.
+        private boolean fill() throws IOException {
+            while (!appIn.hasRemaining()) {
+                SSLEngineResult.HandshakeStatus status = unseal();
+
+                if (status == null) {
+                    return false;
+                }
+
+                while (status == SSLEngineResult.HandshakeStatus.NEED_TASK
+                        || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    status = (status == SSLEngineResult.HandshakeStatus.NEED_TASK)
+                            ? runTasks() : seal(ByteBuffer.allocate(0));
+                }
+            }
+
+            return true;
+        }
+
+        private class In extends InputStream {
+            @Override
+            public int read() throws IOException {
+                if (!fill()) {
+                    return -1;
+                }
+
+                return appIn.get() & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+
+                if (!fill()) {
+                    return -1;
+                }
+
+                final int count = Math.min(len, appIn.remaining());
+                appIn.get(b, off, count);
+
+                return count;
+            }
+
+            @Override
+            public int available() {
+                return appIn.remaining();
+            }
+        }
+
+        private class Out extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                seal(ByteBuffer.wrap(b, off, len));
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package SR;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class DeflateCodec implements Codec {
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Inflater inflater = new Inflater();
+
+    @Override
+    public int encode(byte[] src, int length, byte[] dst) {
+        deflater.reset();
+        deflater.setInput(src, 0, length);
+        deflater.finish();
+
+        // output is capped to the raw length; if it does not fit, compressing this chunk is not worth it.
+        final int encoded = deflater.deflate(dst, 0, length);
+        if (!deflater.finished() || encoded >= length) {
+            return -1;
+        }
+
+        return encoded;
+    }
+
+    @Override
+    public int decode(byte[] src, int length, byte[] dst) throws IOException {
+        inflater.reset();
+        inflater.setInput(src, 0, length);
+
+        try {
+            final int decoded = inflater.inflate(dst);
+            if (!inflater.finished()) {
+                throw new IOException("corrupted compressed chunk");
+            }
+
+            return decoded;
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
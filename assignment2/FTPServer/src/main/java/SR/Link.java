@@ -0,0 +1,12 @@
+package SR;
+
+import java.io.IOException;
+
+// Where a Sender's data frames go on their way to the socket; an Emulator impairs them here.
+public interface Link {
+    // index is the frame's 1-based position in the transfer, as DROP/TIMEOUT/BITERROR count them.
+    void write(Packet packet, long index) throws IOException;
+
+    // frames still held back (delayed, reordered) are discarded once the transfer is over.
+    void close();
+}
@@ -0,0 +1,118 @@
+package SR;
+
+import java.util.Arrays;
+import java.util.List;
+
+// XOR parity over a group of consecutive data frames. Any one member of the group
+// can be rebuilt from the parity and the other members, without a round trip.
+// Payload of a parity frame: [first index(8)][count(1)][length xor(2)][flags xor(1)][payload xor].
+public class Parity {
+    public static final int FLAG_PARITY = 0x02;
+
+    private static final int HEADER_SIZE = 8 + 1 + 2 + 1;
+
+    private long first;
+    private int chunkSize = Consts.CHUNK_SIZE;
+    private int count = 0;
+    private int lengthXor = 0;
+    private int flagsXor = 0;
+    private byte[] xor = new byte[0];
+
+    public Parity(long first) {
+        this.first = first;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getLast() {
+        return first + count - 1;
+    }
+
+    public void add(Packet packet) {
+        final int len = packet.getLength();
+        byte[] data = new byte[len];
+        packet.getData(data);
+
+        if (xor.length < len) {
+            xor = Arrays.copyOf(xor, len);
+        }
+        for (int i = 0; i < len; ++i) {
+            xor[i] ^= data[i];
+        }
+
+        lengthXor ^= len;
+        flagsXor ^= packet.getFlags();
+        chunkSize = packet.getChunkSize();
+        ++count;
+    }
+
+    public Packet toPacket(int transferId) {
+        byte[] payload = new byte[HEADER_SIZE + xor.length];
+
+        for (int i = 0; i < 8; ++i) {
+            payload[i] = (byte)(first >>> (56 - 8 * i));
+        }
+        payload[8] = (byte)count;
+        payload[9] = (byte)((lengthXor >> 8) & 0xFF);
+        payload[10] = (byte)(lengthXor & 0xFF);
+        payload[11] = (byte)flagsXor;
+        System.arraycopy(xor, 0, payload, HEADER_SIZE, xor.length);
+
+        return new Packet(seqOf(first), transferId, FLAG_PARITY, 0, chunkSize, payload.length, payload);
+    }
+
+    public static boolean isParity(Packet packet) {
+        return (packet.getFlags() & FLAG_PARITY) != 0;
+    }
+
+    public static Parity of(Packet packet) {
+        byte[] payload = new byte[packet.getLength()];
+        packet.getData(payload);
+
+        long first = 0;
+        for (int i = 0; i < 8; ++i) {
+            first = (first << 8) | (payload[i] & 0xFF);
+        }
+
+        Parity parity = new Parity(first);
+        parity.chunkSize = packet.getChunkSize();
+        parity.count = payload[8] & 0xFF;
+        parity.lengthXor = ((payload[9] & 0xFF) << 8) | (payload[10] & 0xFF);
+        parity.flagsXor = payload[11] & 0xFF;
+        parity.xor = Arrays.copyOfRange(payload, HEADER_SIZE, payload.length);
+
+        return parity;
+    }
+
+    // the member at index, from every other member of the group.
+    public Packet rebuild(long index, List<Packet> others, int transferId) {
+        byte[] data = Arrays.copyOf(xor, xor.length);
+        int length = lengthXor;
+        int flags = flagsXor;
+
+        for (Packet other : others) {
+            final int len = other.getLength();
+            byte[] value = new byte[len];
+            other.getData(value);
+
+            for (int i = 0; i < len; ++i) {
+                data[i] ^= value[i];
+            }
+
+            length ^= len;
+            flags ^= other.getFlags();
+        }
+
+        return new Packet(seqOf(index), transferId, flags, 0, chunkSize, length, data);
+    }
+
+    public static int seqOf(long index) {
+        return (int)(index % Consts.SEQ_NO_INTERVAL) + 1;
+    }
+}
@@ -0,0 +1,228 @@
+package SR;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The bytes of a Flow.Publisher as the InputStream of a send. Items are requested ahead, a batch at a
+// time, until about ahead bytes are buffered, and kept until a send pass reads them. Reads never wait:
+// a pass asks isReadable first and, if the next chunk is not all here, stops adding frames until the
+// listener requests it again on the next item, so no DataPlane worker waits on the publisher.
+class PublisherStream extends InputStream implements Flow.Subscriber<ByteBuffer> {
+    // items asked for at a time
+    private static final int BATCH = 16;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private ArrayDeque<ByteBuffer> items = new ArrayDeque<ByteBuffer>();
+    private long buffered = 0;
+    private long outstanding = 0;
+    private long ahead;
+
+    private Flow.Subscription subscription;
+    private boolean complete = false;
+    private boolean cancelled = false;
+    private IOException failure;
+
+    private Runnable listener;
+
+    public PublisherStream(long ahead) {
+        this.ahead = ahead;
+    }
+
+    // run on every item, completion or failure
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        long n;
+
+        lock.lock();
+        try {
+            if (this.subscription != null || cancelled) {
+                n = -1;
+            } else {
+                this.subscription = subscription;
+                n = refill();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (n == -1) {
+            subscription.cancel();
+        } else if (n > 0) {
+            subscription.request(n);
+        }
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        long n;
+
+        lock.lock();
+        try {
+            --outstanding;
+
+            if (item.hasRemaining()) {
+                // read through a view of its own, so the publisher's position stays as it was
+                items.add(item.duplicate());
+                buffered += item.remaining();
+            }
+
+            n = refill();
+        } finally {
+            lock.unlock();
+        }
+
+        request(n);
+        notifyListener();
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        lock.lock();
+        try {
+            failure = (e instanceof IOException) ? (IOException) e : new IOException("publisher failed: " + e, e);
+        } finally {
+            lock.unlock();
+        }
+
+        notifyListener();
+    }
+
+    @Override
+    public void onComplete() {
+        lock.lock();
+        try {
+            complete = true;
+        } finally {
+            lock.unlock();
+        }
+
+        notifyListener();
+    }
+
+    // true once the next size bytes are here; throws if the publisher failed or ended short of them.
+    public boolean isReadable(int size) throws IOException {
+        lock.lock();
+        try {
+            if (buffered >= size) {
+                return true;
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+
+            if (complete) {
+                throw new EOFException("publisher completed short of the announced length");
+            }
+
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return (int) Math.min(buffered, Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+
+        return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xFF);
+    }
+
+    // what is here, up to len bytes; -1 if nothing is.
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        int count = 0;
+        long n;
+
+        lock.lock();
+        try {
+            while (count < len && !items.isEmpty()) {
+                ByteBuffer item = items.peek();
+
+                final int part = Math.min(len - count, item.remaining());
+                item.get(b, off + count, part);
+                count += part;
+
+                if (!item.hasRemaining()) {
+                    items.poll();
+                }
+            }
+
+            buffered -= count;
+            n = refill();
+        } finally {
+            lock.unlock();
+        }
+
+        request(n);
+
+        return (count == 0) ? -1 : count;
+    }
+
+    // the send is over; whatever the publisher has left is not wanted.
+    public void cancel() {
+        Flow.Subscription s;
+
+        lock.lock();
+        try {
+            cancelled = true;
+            s = subscription;
+
+            items.clear();
+            buffered = 0;
+        } finally {
+            lock.unlock();
+        }
+
+        if (s != null) {
+            s.cancel();
+        }
+    }
+
+    // items to ask for now: a batch once the last one arrived and fewer than ahead bytes are buffered.
+    private long refill() {
+        if (subscription == null || cancelled || complete || failure != null || outstanding > 0 || buffered >= ahead) {
+            return 0;
+        }
+
+        outstanding = BATCH;
+        return BATCH;
+    }
+
+    // outside the lock, since a synchronous publisher delivers from within request.
+    private void request(long n) {
+        if (n > 0) {
+            subscription.request(n);
+        }
+    }
+
+    private void notifyListener() {
+        Runnable l = listener;
+        if (l != null) {
+            l.run();
+        }
+    }
+}
@@ -1,63 +1,320 @@
 package SR;
 
 import java.beans.beancontext.BeanContextServiceAvailableEvent;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Sender {
     public static final int TIME_OUT = 1000;
 
+    // parity modes: none, or one parity frame per group sized from the observed loss
+    public static final int FEC_OFF = 0;
+    public static final int FEC_AUTO = -1;
+    // a group has to fit in the receiver's window together with the frame being rebuilt
+    public static final int MAX_FEC_GROUP = Consts.WINDOW_SIZE - 1;
+
+    // weight of one send in the running retransmission rate
+    private static final double LOSS_GAIN = 1.0 / 64;
+
+    // a frame is resent once this many frames sent after it have been acked
+    private static final int FAST_RETRANSMIT_ACKS = 3;
+    // a tail probe waits two round trips, but no less than this, and a quarter timeout before the first sample
+    private static final long MIN_PROBE_NANOS = 10_000_000L;
+    private static final long INITIAL_PROBE_NANOS = TIME_OUT * 1_000_000L / 4;
+
     private class Frame {
-        public Timer timer = new Timer();
+        public ScheduledFuture<?> timeout;
         public boolean acked = false;
         public boolean processing = false;
+        public int sends = 0;
+        public long sentAt;
+        public int laterAcks = 0;
     }
 
+    // Guarded by a ReentrantLock rather than its monitor: acks, passes and timeouts all take it for
+    // every frame, and a virtual thread holding a monitor cannot be unmounted from its carrier.
     private class Window {
+        private ReentrantLock lock = new ReentrantLock();
+
         private long baseIndex = 0;
         private long totalIndex;
+        private long ackedCount = 0;
+        private long sendCount = 0;
+        private boolean closed = false;
+
+        // what the receiver last said it can take in, counted from the base
+        private int recvWindow = Consts.WINDOW_SIZE;
+
+        // smoothed round trip of frames acked after a single send (0 until the first one),
+        // and the last send or new ack, which a tail probe waits on
+        private long srtt = 0;
+        private long lastProgress = System.nanoTime();
+        private boolean probed = false;
 
         private HashMap<Integer, Frame> frames = new HashMap<Integer, Frame>();
 
+        // the send pass, requested whenever an ack, a NAK or a timeout may let it send
+        private volatile DataPlane.Task pump;
+
         public Window(long totalIndex) {
             this.totalIndex = totalIndex;
         }
 
-        public synchronized boolean isRun() {
-            return baseIndex < totalIndex;
+        public void setPump(DataPlane.Task pump) {
+            this.pump = pump;
         }
 
-        public synchronized void add(int seqNo) {
-            Frame frame = new Frame();
-            frames.put(seqNo, frame);
+        // a publisher's item may come before the first pass is set up, which requests itself.
+        public void wake() {
+            if (pump != null) {
+                pump.request();
+            }
         }
 
-        public synchronized void start(int seqNo) {
-            Frame frame = frames.get(seqNo);
+        public ScheduledFuture<?> wakeLater(long delayNanos) {
+            return pump.requestLater(delayNanos);
+        }
 
-            frame.processing = true;
-            frame.timer.schedule(new TimeoutHandler(frame), Sender.TIME_OUT);
+        public boolean isRun() {
+            lock.lock();
+            try {
+                return !closed && baseIndex < totalIndex;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public synchronized void stop(int seqNo) {
-            Frame frame = frames.get(seqNo);
+        // lets the ack reader stop at the last ack instead of blocking on a channel that stays open.
+        public boolean isAllAcked() {
+            lock.lock();
+            try {
+                return closed || ackedCount >= totalIndex;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            frame.acked = true;
-            frame.processing = false;
-            frame.timer.cancel();
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void setRecvWindow(int recvWindow) {
+            lock.lock();
+            try {
+                this.recvWindow = recvWindow;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // frames from the base that may be in flight: our window, narrowed to the receiver's.
+        public int getSendWindow() {
+            lock.lock();
+            try {
+                return Math.min(Consts.WINDOW_SIZE, recvWindow);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isClosed() {
+            lock.lock();
+            try {
+                return closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void add(int seqNo) {
+            lock.lock();
+            try {
+                Frame frame = new Frame();
+                frames.put(seqNo, frame);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // true if the frame was sent before, i.e. this is a retransmission.
+        public boolean start(int seqNo) {
+            lock.lock();
+            try {
+                Frame frame = frames.get(seqNo);
+
+                frame.processing = true;
+                frame.timeout = DataPlane.schedule(() -> expire(frame), Sender.TIME_OUT);
+
+                frame.sentAt = System.nanoTime();
+                frame.laterAcks = 0;
+                lastProgress = frame.sentAt;
+                ++sendCount;
+
+                return frame.sends++ > 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void stop(int seqNo) {
+            lock.lock();
+            try {
+                Frame frame = frames.get(seqNo);
+
+                if (!frame.acked) {
+                    ++ackedCount;
+
+                    final long now = System.nanoTime();
+                    if (frame.sends == 1) {
+                        // Karn: a resent frame's ack may belong to either send
+                        srtt = (srtt == 0) ? now - frame.sentAt : (7 * srtt + (now - frame.sentAt)) / 8;
+                    }
+
+                    lastProgress = now;
+                    probed = false;
+
+                    fastRetransmit(offsetOf(seqNo), frame.sentAt);
+                }
+
+                frame.acked = true;
+                frame.processing = false;
+                if (frame.timeout != null) {
+                    frame.timeout.cancel(false);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void expire(Frame frame) {
+            lock.lock();
+            try {
+                frame.processing = false;
+            } finally {
+                lock.unlock();
+            }
+
+            wake();
+        }
+
+        // frames before the acked one, and sent before it, have most likely been lost.
+        private void fastRetransmit(int ackedOffset, long ackedSentAt) {
+            for (Map.Entry<Integer, Frame> entry : frames.entrySet()) {
+                Frame frame = entry.getValue();
+
+                if (offsetOf(entry.getKey()) < ackedOffset && frame.processing && !frame.acked
+                        && frame.sentAt < ackedSentAt && ++frame.laterAcks >= FAST_RETRANSMIT_ACKS) {
+                    resend(frame);
+                }
+            }
         }
 
-        public synchronized void update() {
+        // Tail-loss probe: when nothing was sent or newly acked for about two round trips, the last
+        // frame in flight is resent. Its ack lets the receiver's NAKs and fast retransmit recover
+        // any earlier loss, instead of every frame at the end of the file waiting for its timeout.
+        // Returns true if a frame was marked for the probe.
+        public boolean probe() {
+            lock.lock();
+            try {
+                if (probed || getProbeDelay() > 0) {
+                    return false;
+                }
+
+                Frame last = null;
+                int lastOffset = -1;
+
+                for (Map.Entry<Integer, Frame> entry : frames.entrySet()) {
+                    final int offset = offsetOf(entry.getKey());
+
+                    if (entry.getValue().processing && !entry.getValue().acked && offset > lastOffset) {
+                        last = entry.getValue();
+                        lastOffset = offset;
+                    }
+                }
+
+                if (last == null) {
+                    return false;
+                }
+
+                resend(last);
+                probed = true;
+
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // nanoseconds until a probe is due, or -1 if one was sent since the last progress.
+        public long getProbeDelay() {
+            lock.lock();
+            try {
+                if (probed) {
+                    return -1;
+                }
+
+                final long pto = (srtt == 0) ? INITIAL_PROBE_NANOS : Math.max(2 * srtt, MIN_PROBE_NANOS);
+
+                return Math.max(0, lastProgress + pto - System.nanoTime());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int offsetOf(int seqNo) {
             final int baseSeqNo = (int)(baseIndex % Consts.SEQ_NO_INTERVAL + 1);
 
-            frames.remove(baseSeqNo);
-            ++baseIndex;
+            return (seqNo - baseSeqNo + Consts.SEQ_NO_INTERVAL) % Consts.SEQ_NO_INTERVAL;
+        }
+
+        // the send loop picks the frame up again on its next pass.
+        private void resend(Frame frame) {
+            frame.timeout.cancel(false);
+            frame.processing = false;
+        }
+
+        // the receiver reported the frame corrupted or missing: resend it now instead of at its timeout.
+        public void nak(int seqNo) {
+            lock.lock();
+            try {
+                Frame frame = frames.get(seqNo);
+
+                if (frame == null || frame.acked || !frame.processing) {
+                    return;
+                }
+
+                resend(frame);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void update() {
+            lock.lock();
+            try {
+                final int baseSeqNo = (int)(baseIndex % Consts.SEQ_NO_INTERVAL + 1);
+
+                frames.remove(baseSeqNo);
+                ++baseIndex;
+            } finally {
+                lock.unlock();
+            }
         }
 
         public long getBaseIndex() {
@@ -68,93 +325,176 @@ public class Sender {
             return totalIndex;
         }
 
-        public synchronized boolean hasSeqNo(int seqNo) {
-            return frames.containsKey(seqNo);
+        public long getSendCount() {
+            lock.lock();
+            try {
+                return sendCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean hasSeqNo(int seqNo) {
+            lock.lock();
+            try {
+                return frames.containsKey(seqNo);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isProcessing(int seqNo) {
+            lock.lock();
+            try {
+                return frames.get(seqNo).processing;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public synchronized boolean isProcessing(int seqNo) {
-            return frames.get(seqNo).processing;
+        public boolean isAcked(int seqNo) {
+            lock.lock();
+            try {
+                return frames.get(seqNo).acked;
+            } finally {
+                lock.unlock();
+            }
         }
 
-        public synchronized boolean isAcked(int seqNo) {
-            return frames.get(seqNo).acked;
+        public boolean isBaseAcked() {
+            lock.lock();
+            try {
+                Frame frame = frames.get((int)(baseIndex % Consts.SEQ_NO_INTERVAL + 1));
+
+                return frame != null && frame.acked;
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
+    // The send side of a transfer as a state machine: every run is one pass that sends what the window,
+    // the receiver and the limiter allow right now, and returns. Passes run on the DataPlane workers.
     private class SendHandler implements Runnable {
         private Window window;
-        private OutputStream outStream;
+        private Link link;
         private long length;
         private InputStream file;
+        private List<Payload> payloads;
+
+        private int transferId;
+        private Codec codec;
+        private int chunkSize;
+
+        // the parity group being filled, and finished parity frames keyed by their group's last index
+        private Parity group;
+        private int groupTarget;
+        private HashMap<Long, Packet> parities = new HashMap<Long, Packet>();
+        private double lossRate = 0;
+
+        private HashMap<Integer, Packet> packets = new HashMap<Integer, Packet>();
+        private byte[] encoded;
+
+        // when the limiter lets the next frame go, and the pending wake-up for it or for a probe
+        private long pacedUntil = 0;
+        private ScheduledFuture<?> wakeup;
+        private long wakeupAt;
 
-        private List<Long> drop, timeout, biterr;
+        // completed by the pass that finds the transfer over
+        private CompletableFuture<Void> done = new CompletableFuture<Void>();
 
-        public SendHandler(Window window, OutputStream outStream, InputStream file, long length, List<Long> drop, List<Long> timeout, List<Long> biterr) {
+        // set if the data is published: chunks are only read once they are all here
+        private PublisherStream source;
+        private IOException failure;
+
+        public SendHandler(Window window, Link link, InputStream file, long length, int chunkSize, int transferId, Codec codec) {
             this.window = window;
-            this.outStream = outStream;
+            this.link = link;
             this.length = length;
             this.file = file;
+            this.source = (file instanceof PublisherStream) ? (PublisherStream) file : null;
+
+            this.transferId = transferId;
+            this.codec = codec;
+            this.chunkSize = chunkSize;
+        }
+
+        public SendHandler(Window window, Link link, List<Payload> payloads, int transferId) {
+            this(window, link, null, 0, Consts.CHUNK_SIZE, transferId, null);
 
-            this.drop = drop;
-            this.timeout = timeout;
-            this.biterr = biterr;
+            this.payloads = payloads;
         }
 
         @Override
         public void run() {
-            HashMap<Integer, Packet> packets = new HashMap<Integer, Packet>();
+            if (encoded == null) {
+                encoded = new byte[chunkSize];
+            }
+
+            boolean progress = true;
+
+            while (progress && window.isRun()) {
+                progress = false;
 
-            while (window.isRun()) {
                 final long base = window.getBaseIndex();
-                final int baseSeqNo = (int)(base % Consts.SEQ_NO_INTERVAL) + 1;
 
-                for (long index = base; index < window.getTotalIndex() && index < base + Consts.WINDOW_SIZE; ++index) {
+                for (long index = base; index < window.getTotalIndex() && index < base + window.getSendWindow(); ++index) {
                     try {
                         final int seq = (int)(index % Consts.SEQ_NO_INTERVAL) + 1;
 
-                        if (!window.hasSeqNo(seq)) {
-                            byte[] data = new byte[Consts.CHUNK_SIZE];
-                            int chunkSize;
-                            if (length >= Consts.CHUNK_SIZE * (index + 1)) {
-                                chunkSize = Consts.CHUNK_SIZE;
+                        if (!window.hasSeqNo(seq) && payloads != null) {
+                            // prepared payloads skip the read and the encoder.
+                            Payload payload = payloads.get((int) index);
+                            final int flags = payload.isCompressed() ? Packet.FLAG_COMPRESSED : 0;
+
+                            packets.put(seq, new Packet(seq, transferId, flags, 0, chunkSize, payload.getLength(), payload.getData()));
+                            window.add(seq);
+                            addToGroup(index, packets.get(seq));
+                        } else if (!window.hasSeqNo(seq)) {
+                            byte[] data = new byte[chunkSize];
+                            int size;
+                            if (length >= (long) chunkSize * (index + 1)) {
+                                size = chunkSize;
                             } else {
-                                chunkSize = (int)(length - Consts.CHUNK_SIZE * index);
+                                size = (int)(length - (long) chunkSize * index);
+                            }
+
+                            if (source != null && !isReadable(size)) {
+                                // the next item requests another pass
+                                break;
                             }
 
-                            file.read(data, 0, chunkSize);
+                            file.readNBytes(data, 0, size);
 
-                            packets.put(seq, new Packet(seq, 0, chunkSize, data));
+                            final int encodedSize = (codec == null) ? -1 : codec.encode(data, size, encoded);
+                            if (encodedSize != -1) {
+                                packets.put(seq, new Packet(seq, transferId, Packet.FLAG_COMPRESSED, 0, chunkSize, encodedSize, encoded));
+                            } else {
+                                packets.put(seq, new Packet(seq, transferId, 0, 0, chunkSize, size, data));
+                            }
                             window.add(seq);
+                            addToGroup(index, packets.get(seq));
                         }
 
                         if (!window.isProcessing(seq) && !window.isAcked(seq)) {
+                            // paced before the timer starts, so waiting for the limiter is not taken for a loss.
+                            if (!isPaced()) {
+                                return;
+                            }
+
                             try {
-                                int dropIdx = drop.indexOf(index + 1);
-                                int timeoutIndex = timeout.indexOf(index + 1);
-                                int biterrIndex = biterr.indexOf(index + 1);
-
-                                window.start(seq);
-
-                                if (dropIdx != -1) {
-                                    drop.set(dropIdx, -1l);
-                                } else if (timeoutIndex != -1) {
-                                    timeout.set(timeoutIndex, -1l);
-                                    new Thread(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            try {
-                                                Thread.sleep(TIME_OUT * 2l);
-                                                outStream.write(packets.get(seq).get());
-                                            } catch (Exception e) {
-                                                // Do nothing;
-                                            }
-                                        }
-                                    }).start();
-                                } else if (biterrIndex != -1) {
-                                    biterr.set(biterrIndex, -1l);
-                                    outStream.write(packets.get(seq).BitErrorPkt().get());
-                                } else {
-                                    outStream.write(packets.get(seq).get());
+                                charge(packets.get(seq));
+
+                                final boolean resend = window.start(seq);
+                                lossRate += LOSS_GAIN * ((resend ? 1 : 0) - lossRate);
+
+                                link.write(packets.get(seq), index + 1);
+
+                                // a group's parity follows the first send of its last frame.
+                                Packet parity = resend ? null : parities.remove(index);
+                                if (parity != null) {
+                                    charge(parity);
+                                    link.write(parity, 0);
                                 }
                             } catch (Exception e) {
                                 // Do nothing
@@ -165,35 +505,166 @@ public class Sender {
                     }
                 }
 
-                if (window.isAcked(baseSeqNo)) {
+                while (window.isRun() && window.isBaseAcked()) {
+                    packets.remove((int)(window.getBaseIndex() % Consts.SEQ_NO_INTERVAL) + 1);
                     window.update();
-                    packets.remove(baseSeqNo);
+                    progress = true;
+                }
+
+                if (window.probe()) {
+                    progress = true;
                 }
             }
+
+            if (!window.isRun()) {
+                done.complete(null);
+                return;
+            }
+
+            // acks and timeouts request the next pass themselves; a probe needs a wake-up of its own.
+            final long probeDelay = window.getProbeDelay();
+            if (probeDelay >= 0) {
+                wakeUpIn(probeDelay);
+            }
+        }
+
+        // A publisher that failed or ended short fails the transfer. The receiver waits for the rest and
+        // no ack may come any more, so the channel is closed to let the ack reader go as well.
+        private boolean isReadable(int size) {
+            try {
+                return source.isReadable(size);
+            } catch (IOException e) {
+                failure = e;
+                window.close();
+                closeChannel();
+                return false;
+            }
+        }
+
+        // false if the limiter holds the next frame back; the pass is then requested again when it is due.
+        private boolean isPaced() {
+            final long wait = pacedUntil - System.nanoTime();
+
+            if (wait > 0) {
+                wakeUpIn(wait);
+                return false;
+            }
+
+            return true;
+        }
+
+        // the frame goes out now; the limiter's answer holds back the frames after it.
+        private void charge(Packet packet) {
+            if (limiter != null) {
+                pacedUntil = System.nanoTime() + limiter.reserve(Packet.HEADER_LENGTH + packet.getLength());
+            }
+        }
+
+        private void wakeUpIn(long delayNanos) {
+            final long now = System.nanoTime();
+            final long at = now + delayNanos;
+
+            // one that is due may be the very request that started this pass, so it does not count.
+            if (wakeup != null && !wakeup.isDone() && wakeupAt > now) {
+                if (wakeupAt <= at) {
+                    return;
+                }
+
+                wakeup.cancel(false);
+            }
+
+            wakeupAt = at;
+            wakeup = window.wakeLater(delayNanos);
+        }
+
+        public void await() throws InterruptedException {
+            try {
+                done.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        // groups are formed as frames are first created, which happens in index order.
+        private void addToGroup(long index, Packet packet) {
+            if (group == null) {
+                groupTarget = groupSize();
+                if (groupTarget == 0) {
+                    return;
+                }
+
+                group = new Parity(index);
+            }
+
+            group.add(packet);
+
+            if (group.getCount() == groupTarget || index == window.getTotalIndex() - 1) {
+                parities.put(index, group.toPacket(transferId));
+                group = null;
+            }
+        }
+
+        private int groupSize() {
+            if (fec != FEC_AUTO) {
+                return fec;
+            }
+
+            // the lossier the link, the fewer frames share one parity frame
+            if (lossRate < 0.01) {
+                return 0;
+            } else if (lossRate < 0.03) {
+                return 4;
+            } else if (lossRate < 0.08) {
+                return 3;
+            }
+
+            return 2;
         }
     }
 
     private class AckHandler implements Runnable {
         private Window window;
         private InputStream inStream;
+        private int transferId;
 
-        public AckHandler(Window window, InputStream inStream) {
+        public AckHandler(Window window, InputStream inStream, int transferId) {
             this.window = window;
             this.inStream = inStream;
+            this.transferId = transferId;
         }
 
         @Override
         public void run() {
-            while (window.isRun()) {
+            while (!window.isAllAcked()) {
                 try {
-                    byte[] resp = new byte[AckPacket.length];
-                    if (inStream.read(resp) != -1) {
-                        AckPacket packet = new AckPacket(resp);
+                    AckPacket packet = AckPacket.read(inStream);
+                    if (packet == null) {
+                        window.close();
+                        break;
+                    }
 
-                        if (packet.getCheckSum() == 0) {
-                            window.stop(packet.getSequenceNumber());
-                        }
+                    if (packet.getTransferId() != transferId) {
+                        // late ack of an earlier transfer on the same channel
+                        continue;
                     }
+
+                    if (packet.getCheckSum() != 0) {
+                        continue;
+                    }
+
+                    window.setRecvWindow(packet.getRecvWindow());
+
+                    if (packet.isNak()) {
+                        window.nak(packet.getSequenceNumber());
+                    } else if (packet.getSequenceNumber() != AckPacket.WINDOW_UPDATE) {
+                        window.stop(packet.getSequenceNumber());
+                    }
+
+                    window.wake();
+                } catch (IOException e) {
+                    // the channel is gone (closed under us, or out of step); no more acks will come
+                    window.close();
+                    break;
                 } catch (Exception e) {
                     // Do nothing
                 }
@@ -201,45 +672,168 @@ public class Sender {
         }
     }
 
-    private class TimeoutHandler extends TimerTask {
-        private Frame frame;
+    private DataChannel channel;
+    private InputStream inStream;
+
+    private List<Long> drop, timeout, biterr;
 
-        public TimeoutHandler(Frame frame) {
-            this.frame = frame;
-        }
+    private int transferId;
+    private Codec codec;
+    private RateLimiter limiter;
+    private Emulator.Profile profile;
+    private int fec = FEC_OFF;
+    private ChunkSizer sizer;
 
-        @Override
-        public void run() {
-            frame.processing = false;
-        }
+    public Sender(Socket socket, List<Long> drop, List<Long> timeout, List<Long> biterr) throws IOException {
+        this(socket, 0, drop, timeout, biterr, null);
     }
 
-    private InputStream inStream;
-    private OutputStream outStream;
+    public Sender(Socket socket, List<Long> drop, List<Long> timeout, List<Long> biterr, Codec codec) throws IOException {
+        this(socket, 0, drop, timeout, biterr, codec);
+    }
 
-    private List<Long> drop, timeout, biterr;
+    public Sender(Socket socket, int transferId, List<Long> drop, List<Long> timeout, List<Long> biterr, Codec codec) throws IOException {
+        this(new DataChannel(socket), transferId, drop, timeout, biterr, codec);
+    }
 
-    public Sender(Socket socket, List<Long> drop, List<Long> timeout, List<Long> biterr) throws IOException {
-        inStream = socket.getInputStream();
-        outStream = socket.getOutputStream();
+    public Sender(DataChannel channel, int transferId, List<Long> drop, List<Long> timeout, List<Long> biterr, Codec codec) {
+        this.channel = channel;
+        inStream = channel.getInputStream();
 
         this.drop = drop;
         this.timeout = timeout;
         this.biterr = biterr;
+
+        this.transferId = transferId;
+        this.codec = codec;
     }
 
-    public void send(InputStream data, long length) throws InterruptedException {
-        final long chunkCount = length / Consts.CHUNK_SIZE + (length % Consts.CHUNK_SIZE > 0 ? 1 : 0);
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    // network impairments applied to this sender's frames, on top of the scripted DROP/TIMEOUT/BITERROR.
+    public void setProfile(Emulator.Profile profile) {
+        this.profile = profile;
+    }
+
+    // picks the chunk size of streamed transfers and learns from them; without one, CHUNK_SIZE is used.
+    public void setChunkSizer(ChunkSizer sizer) {
+        this.sizer = sizer;
+    }
+
+    // FEC_OFF, FEC_AUTO, or a fixed group size from 1 to MAX_FEC_GROUP.
+    public void setFec(int fec) {
+        this.fec = fec;
+    }
 
-        Window window = new Window(chunkCount);
+    // "OFF", "AUTO" or a group size, as given to the FEC command.
+    public static int parseFec(String spec) {
+        if (spec.equalsIgnoreCase("OFF")) {
+            return FEC_OFF;
+        } else if (spec.equalsIgnoreCase("AUTO")) {
+            return FEC_AUTO;
+        }
+
+        final int group;
+        try {
+            group = Integer.parseInt(spec);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a group size: " + spec);
+        }
 
-        Thread sendWorker = new Thread(new SendHandler(window, outStream, data, length, drop, timeout, biterr));
-        Thread ackWorker = new Thread(new AckHandler(window, inStream));
+        if (group < 1 || group > MAX_FEC_GROUP) {
+            throw new IllegalArgumentException("group size must be 1 to " + MAX_FEC_GROUP);
+        }
 
-        sendWorker.start();
-        ackWorker.start();
+        return group;
+    }
+
+    public static String describeFec(int fec) {
+        if (fec == FEC_OFF) {
+            return "off";
+        } else if (fec == FEC_AUTO) {
+            return "adaptive";
+        }
 
-        sendWorker.join();
-        ackWorker.join();
+        return "1 parity per " + fec + " frames";
+    }
+
+    public void send(InputStream data, long length) throws InterruptedException, IOException {
+        final int chunkSize = (sizer == null) ? Consts.CHUNK_SIZE : sizer.getChunkSize();
+        Window window = new Window(Payload.chunkCount(length, chunkSize));
+
+        final long start = System.nanoTime();
+        send(window, data, length, chunkSize);
+
+        if (sizer != null) {
+            sizer.record(length, System.nanoTime() - start, window.getTotalIndex(), window.getSendCount());
+        }
+    }
+
+    // Sends exactly length bytes as publisher delivers them, and cancels the subscription once the transfer
+    // is over, whatever it had left. Items are requested about two windows of chunks ahead, so a slow
+    // publisher holds up the transfer, not a DataPlane worker; one that fails or ends short fails it.
+    // The time it takes says little about the path, so the chunk sizer does not learn from it.
+    public void send(Flow.Publisher<? extends ByteBuffer> publisher, long length) throws InterruptedException, IOException {
+        final int chunkSize = (sizer == null) ? Consts.CHUNK_SIZE : sizer.getChunkSize();
+        Window window = new Window(Payload.chunkCount(length, chunkSize));
+
+        PublisherStream source = new PublisherStream(2L * Consts.WINDOW_SIZE * chunkSize);
+        source.setListener(window::wake);
+        publisher.subscribe(source);
+
+        try {
+            send(window, source, length, chunkSize);
+        } finally {
+            source.cancel();
+        }
+    }
+
+    private void send(Window window, InputStream data, long length, int chunkSize) throws InterruptedException, IOException {
+        Link link = new Emulator(channel.getFrameWriter(), profile, drop, timeout, biterr);
+
+        run(window, link, new SendHandler(window, link, data, length, chunkSize, transferId, codec));
+    }
+
+    // payloads prepared in chunk order, e.g. from a cache, in chunks of CHUNK_SIZE;
+    // the codec given to the constructor is not used.
+    public void send(List<Payload> payloads) throws InterruptedException, IOException {
+        Window window = new Window(payloads.size());
+
+        Link link = new Emulator(channel.getFrameWriter(), profile, drop, timeout, biterr);
+
+        run(window, link, new SendHandler(window, link, payloads, transferId));
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // it is given up either way
+        }
+    }
+
+    // passes run on the DataPlane, and the acks are read right here: the calling thread is held for the
+    // whole transfer (see DataPlane).
+    private void run(Window window, Link link, SendHandler sendHandler) throws InterruptedException, IOException {
+        window.setPump(new DataPlane.Task(sendHandler));
+        window.wake();
+
+        new AckHandler(window, inStream, transferId).run();
+
+        // the channel may have closed under us; the next pass finds out.
+        window.wake();
+        sendHandler.await();
+
+        link.close();
+
+        if (sendHandler.failure != null) {
+            throw sendHandler.failure;
+        }
+
+        if (window.isClosed()) {
+            throw new EOFException("data channel closed");
+        }
     }
 }
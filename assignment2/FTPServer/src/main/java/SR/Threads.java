@@ -0,0 +1,98 @@
+package SR;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Where blocking work runs: on platform threads, or with -Dftp.threads=virtual on virtual threads.
+// Virtual threads need JDK 21; they are looked up reflectively so the code still builds and runs on
+// older JDKs, which fall back to platform threads with a warning.
+public class Threads {
+    public static final String MODE_PROPERTY = "ftp.threads";
+
+    private static final Method startVirtualThread = lookup(Thread.class, "startVirtualThread", Runnable.class);
+    private static final Method newVirtualThreadPerTaskExecutor = lookup(Executors.class, "newVirtualThreadPerTaskExecutor");
+
+    private static final boolean virtual = resolveMode();
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    public static String getMode() {
+        return virtual ? "virtual" : "platform";
+    }
+
+    // one thread per task, as for a session.
+    public static Thread start(String name, Runnable task) {
+        if (virtual) {
+            return (Thread) invoke(startVirtualThread, task);
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.start();
+
+        return thread;
+    }
+
+    // platformThreads bounds the pool in platform mode; virtual threads are cheap enough to get one per task.
+    public static ExecutorService newExecutor(String name, int platformThreads) {
+        if (virtual) {
+            return (ExecutorService) invoke(newVirtualThreadPerTaskExecutor);
+        }
+
+        return Executors.newFixedThreadPool(platformThreads, daemon(name));
+    }
+
+    // unbounded in either mode; idle platform threads are kept for a minute and reused.
+    public static ExecutorService newCachedExecutor(String name) {
+        if (virtual) {
+            return (ExecutorService) invoke(newVirtualThreadPerTaskExecutor);
+        }
+
+        return Executors.newCachedThreadPool(daemon(name));
+    }
+
+    public static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static boolean resolveMode() {
+        final String mode = System.getProperty(MODE_PROPERTY, "platform");
+
+        if (!mode.equalsIgnoreCase("virtual")) {
+            return false;
+        }
+
+        if (startVirtualThread == null || newVirtualThreadPerTaskExecutor == null) {
+            System.err.println("<WARNING> virtual threads need JDK 21 or later, using platform threads");
+            return false;
+        }
+
+        return true;
+    }
+
+    private static Method lookup(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object... args) {
+        try {
+            return method.invoke(null, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs concurrent SR transfers over loopback, each sender and receiver on a session thread of the
+// current mode, and reports throughput and the peak number of platform threads. It is a test source,
+// kept out of the server jar; after mvn test-compile, compare
+//   java -cp FTPServer/target/classes:FTPServer/target/test-classes Benchmark 1000 65536
+//   java -Dftp.threads=virtual -cp FTPServer/target/classes:FTPServer/target/test-classes Benchmark 1000 65536
+// on JDK 21, where the jdk21 profile builds for it. Older JDKs run the second one on platform threads
+// as well, so the comparison only means something there.
+// With -Dftp.data.tls=true (and the javax.net.ssl key and trust stores) every channel is encrypted,
+// which shows what TLS costs over plaintext and how many channels resumed a session.
+class Benchmark {
+    private static final int DEFAULT_SESSIONS = 100;
+    private static final int DEFAULT_BYTES = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = DEFAULT_SESSIONS, bytes = DEFAULT_BYTES;
+
+        if (args.length > 2) {
+            System.err.println("<ERROR> invalid arguments");
+            System.err.println("usage: java Benchmark <sessions> <bytes per session>");
+
+            System.exit(-1);
+        }
+
+        if (args.length > 0) {
+            sessions = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            bytes = Integer.parseInt(args[1]);
+        }
+
+        byte[] content = new byte[bytes];
+        new Random(0).nextBytes(content);
+
+        ServerSocket listener = new ServerSocket(0, sessions, InetAddress.getLoopbackAddress());
+        final boolean secure = Boolean.getBoolean(SR.DataChannel.TLS_PROPERTY);
+
+        // one untimed transfer, which warms up the code and leaves a session ticket for the others to resume.
+        if (run(listener, 1, new byte[1], secure).contains(null)) {
+            System.exit(1);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        final long start = System.nanoTime();
+        List<SR.DataChannel> channels = run(listener, sessions, content, secure);
+        final long elapsed = System.nanoTime() - start;
+
+        listener.close();
+
+        int resumed = 0, failed = 0;
+        for (SR.DataChannel channel : channels) {
+            if (channel == null) {
+                ++failed;
+            } else if (channel.isResumed()) {
+                ++resumed;
+            }
+        }
+
+        final double seconds = elapsed / 1e9;
+        final double megabytes = (double) sessions * bytes / (1024 * 1024);
+
+        System.out.printf("%s threads, %s: %d sessions x %d bytes in %.2f s, %.1f MB/s, %d failed, peak %d platform threads%n",
+                SR.Threads.getMode(), secure ? "TLS (" + resumed + " resumed)" : "plaintext", sessions, bytes,
+                seconds, megabytes / seconds, failed, threads.getPeakThreadCount());
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    // Transfers content over each of count loopback channels at once. Returns the sending side of every
+    // channel whose transfer arrived complete, and null for every one that failed.
+    private static List<SR.DataChannel> run(ServerSocket listener, int count, byte[] content, boolean secure)
+            throws IOException, InterruptedException {
+        final int port = listener.getLocalPort();
+
+        CountDownLatch done = new CountDownLatch(2 * count);
+        List<SR.DataChannel> channels = Collections.synchronizedList(new ArrayList<SR.DataChannel>());
+        AtomicInteger failed = new AtomicInteger();
+        List<Socket> sockets = new ArrayList<Socket>();
+
+        for (int i = 0; i < count; ++i) {
+            Socket out = new Socket(InetAddress.getLoopbackAddress(), port);
+            Socket in = listener.accept();
+            sockets.add(out);
+            sockets.add(in);
+
+            final int transferId = i;
+
+            SR.Threads.start("session", () -> {
+                try {
+                    SR.DataChannel channel = secure ? SR.DataChannel.connect(out, "localhost", port) : new SR.DataChannel(out);
+
+                    SR.Sender sender = new SR.Sender(channel, transferId, new ArrayList<Long>(), new ArrayList<Long>(),
+                            new ArrayList<Long>(), null);
+                    sender.setChunkSizer(new SR.ChunkSizer());
+                    sender.send(new ByteArrayInputStream(content), content.length);
+
+                    channels.add(channel);
+                } catch (IOException | InterruptedException e) {
+                    System.err.println("<EXCEPTION> " + e.getMessage());
+                    channels.add(null);
+                } finally {
+                    done.countDown();
+                }
+            });
+
+            SR.Threads.start("session", () -> {
+                try {
+                    CountingStream counter = new CountingStream();
+                    SR.DataChannel channel = secure ? SR.DataChannel.accept(in) : new SR.DataChannel(in);
+                    new SR.Receiver(channel, transferId, null).recv(counter, content.length);
+
+                    if (counter.count != content.length) {
+                        failed.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    System.err.println("<EXCEPTION> " + e.getMessage());
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        done.await();
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        // a receiver that failed or came up short fails its channel
+        for (int i = 0; i < failed.get(); ++i) {
+            channels.add(null);
+        }
+
+        return channels;
+    }
+
+    private static class CountingStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}